@@ -1,5 +1,6 @@
 package app.batch.listener;
 
+import app.batch.partitioner.KeyRangePartitioner;
 import app.model.ApplicationLog;
 import app.model.BatchExecution;
 import app.service.ApplicationLogService;
@@ -53,7 +54,9 @@ public class BatchListener {
     public void afterJob(JobExecution jobExecution) {
         logger.info("afterJob {}", jobExecution);
 
+        // partition step executions are already aggregated into their master step execution
         Pair<Integer,Integer> readWriteCounts = jobExecution.getStepExecutions().stream()
+                .filter(se -> !se.getExecutionContext().containsKey(KeyRangePartitioner.PARTITION_NAME))
                 .map(se -> Pair.of(se.getReadCount() + se.getReadSkipCount(), se.getWriteCount()))
                 .reduce(Pair.of(0, 0), (a,b) -> Pair.of(a.getLeft() + b.getLeft(), a.getRight() + b.getRight()));
         jobExecution.getExecutionContext().putInt("total", readWriteCounts.getLeft());
@@ -0,0 +1,164 @@
+package app.batch.mapper;
+
+import javax.persistence.ManyToOne;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import app.model.CrudEntity;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Child row mapper generated from the JPA metadata of the child entity. Each row with a child ID
+ * is mapped into a new child entity, which is linked to its parent through the {@link ManyToOne}
+ * field of the child and added to the given collection field of the parent.
+ * <p>
+ * When the child rows are fetched by a separate query, the parent key is read from the column
+ * labelled {@code parentKeyLabel}. It is read as an {@code int} or a {@code long} if the parent ID
+ * is an {@link Integer} or a {@link Long}, and must have the type of the parent ID otherwise.
+ * @param <T> the type of the parent entity
+ * @param <C> the type of the child entity
+ * @param <K> the type of the parent ID
+ */
+public class EntityChildRowMapper<T extends CrudEntity<K>, C, K extends Comparable<? super K>> implements StructuredChildRowMapper<T, K> {
+
+    private final EntityRowMapping<C> mapping;
+
+    private final String collectionField;
+
+    private String parentKeyLabel;
+
+    private final Map<SqlRowSet, Integer> parentKeyIndexes = new ConcurrentHashMap<>();
+
+    private volatile Field collection;
+
+    private volatile Field parent;
+
+    public EntityChildRowMapper(final Class<C> type, final String collectionField) {
+        this.mapping = new EntityRowMapping<>(type);
+        this.collectionField = collectionField;
+    }
+
+    @Override
+    public K getParentKey(final T item) {
+        return item.getId();
+    }
+
+    @Override
+    public int compareParentKey(final T item, final SqlRowSet rs) {
+        final int index = getParentKeyIndex(rs);
+        final K id = item.getId();
+        if (id instanceof Integer) {
+            return Integer.compare((Integer) id, rs.getInt(index));
+        } else if (id instanceof Long) {
+            return Long.compare((Long) id, rs.getLong(index));
+        }
+        final Object key = rs.getObject(index);
+        if (!id.getClass().isInstance(key)) {
+            throw new IllegalStateException("Parent key " + key + " does not have the type of the parent ID " + id + ".");
+        }
+        // the key has the type of the parent ID
+        @SuppressWarnings("unchecked")
+        final K k = (K) key;
+        return id.compareTo(k);
+    }
+
+    private int getParentKeyIndex(final SqlRowSet rs) {
+        Integer index = parentKeyIndexes.get(rs);
+        if (index == null) {
+            if (parentKeyLabel == null) {
+                throw new IllegalStateException("Parent key label is not defined.");
+            }
+            index = rs.findColumn(parentKeyLabel);
+            parentKeyIndexes.put(rs, index);
+        }
+        return index;
+    }
+
+    @Override
+    public void release(final SqlRowSet rs) {
+        mapping.release(rs);
+        parentKeyIndexes.remove(rs);
+    }
+
+    @Override
+    public void updateItem(final T item, final SqlRowSet rs, final int recordIndex) {
+        if (mapping.hasRow(rs)) {
+            final C child = mapping.newItem(rs);
+            ReflectionUtils.setField(getParentField(child.getClass(), item.getClass()), child, item);
+            getCollection(item).add(child);
+        }
+    }
+
+    /**
+     * Initializes the child collection of a new parent item.
+     * @param item the parent item
+     */
+    public void initItem(final T item) {
+        ReflectionUtils.setField(getCollectionField(item.getClass()), item, new ArrayList<>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<C> getCollection(final T item) {
+        final Field f = getCollectionField(item.getClass());
+        Collection<C> c = (Collection<C>) ReflectionUtils.getField(f, item);
+        if (c == null) {
+            c = new ArrayList<>();
+            ReflectionUtils.setField(f, item, c);
+        }
+        return c;
+    }
+
+    private Field getCollectionField(final Class<?> parentType) {
+        if (collection == null) {
+            final Field f = ReflectionUtils.findField(parentType, collectionField);
+            if (f == null) {
+                throw new IllegalStateException("Field " + collectionField + " is not found in " + parentType.getName() + ".");
+            }
+            f.setAccessible(true);
+            collection = f;
+        }
+        return collection;
+    }
+
+    private Field getParentField(final Class<?> childType, final Class<?> parentType) {
+        if (parent == null) {
+            final Field[] f = new Field[1];
+            ReflectionUtils.doWithFields(childType, field -> f[0] = field,
+                field -> f[0] == null && field.isAnnotationPresent(ManyToOne.class) && field.getType().isAssignableFrom(parentType));
+            if (f[0] == null) {
+                throw new IllegalStateException("No parent field of " + parentType.getName() + " is found in " + childType.getName() + ".");
+            }
+            f[0].setAccessible(true);
+            parent = f[0];
+        }
+        return parent;
+    }
+
+    public EntityRowMapping<C> getMapping() {
+        return mapping;
+    }
+
+    public String getCollectionField() {
+        return collectionField;
+    }
+
+    public String getParentKeyLabel() {
+        return parentKeyLabel;
+    }
+
+    public void setParentKeyLabel(final String parentKeyLabel) {
+        this.parentKeyLabel = parentKeyLabel;
+    }
+
+    public void setPrefix(final String prefix) {
+        mapping.setPrefix(prefix);
+    }
+
+    public void setSuffix(final String suffix) {
+        mapping.setSuffix(suffix);
+    }
+
+}
@@ -0,0 +1,255 @@
+package app.batch.mapper;
+
+import javax.persistence.Column;
+import javax.persistence.Id;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.jdbc.support.rowset.SqlRowSetMetaData;
+
+/**
+ * Compiled mapping between the columns of a row set and the {@link Column} annotated fields of an
+ * entity class. The column label of a field is {@code prefix + column name + suffix}. Column
+ * indexes are resolved once per row set from its metadata and kept until the row set is released,
+ * and values are read by index with the accessor matching the field type, so no label lookup or
+ * string conversion happens per row. Fields whose column is not in the row set are left untouched.
+ */
+public class EntityRowMapping<T> {
+
+    private final Class<T> type;
+
+    private final List<Property> properties;
+
+    private final Property idProperty;
+
+    // column indexes by row set, which do not override equals
+    private final Map<SqlRowSet, int[]> columnIndexes = new ConcurrentHashMap<>();
+
+    private String prefix = "";
+
+    private String suffix = "";
+
+    interface ColumnReader {
+
+        void read(Object target, Field field, SqlRowSet rs, int index) throws IllegalAccessException;
+
+    }
+
+    private static final class Property {
+
+        private final Field field;
+
+        private final String column;
+
+        private final ColumnReader reader;
+
+        private Property(final Field field, final String column, final ColumnReader reader) {
+            this.field = field;
+            this.column = column;
+            this.reader = reader;
+        }
+    }
+
+    public EntityRowMapping(final Class<T> type) {
+        this.type = type;
+        final List<Property> l = new ArrayList<>();
+        Property id = null;
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                final Column column = field.getAnnotation(Column.class);
+                if (column != null && !Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    final Property property = new Property(field,
+                        column.name().isEmpty() ? field.getName() : column.name(), getReader(field.getType()));
+                    l.add(property);
+                    if (field.isAnnotationPresent(Id.class)) {
+                        id = property;
+                    }
+                }
+            }
+        }
+        Objects.requireNonNull(id, "No ID column is defined in " + type.getName() + ".");
+        this.properties = Collections.unmodifiableList(l);
+        this.idProperty = id;
+    }
+
+    /**
+     * Determines if the current row contains an entity, i.e. the ID column is present and not null.
+     * @param rs the row set
+     * @return {@code true} if the row contains an entity
+     */
+    public boolean hasRow(final SqlRowSet rs) {
+        final int index = getIndexes(rs)[0];
+        if (index > 0) {
+            rs.getObject(index);
+            return !rs.wasNull();
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the ID of the current row equals the ID of the item.
+     * @param item the item
+     * @param rs the row set
+     * @return {@code true} if the IDs are equal
+     */
+    public boolean isSameId(final T item, final SqlRowSet rs) {
+        final int index = getIndexes(rs)[0];
+        if (index == 0) {
+            throw new IllegalStateException("ID column " + idProperty.column + " of " + type.getName() + " is not found.");
+        }
+        final Object id = getId(item);
+        if (id instanceof Integer) {
+            final int v = rs.getInt(index);
+            return !rs.wasNull() && v == (Integer) id;
+        } else if (id instanceof Long) {
+            final long v = rs.getLong(index);
+            return !rs.wasNull() && v == (Long) id;
+        }
+        return Objects.equals(id, rs.getObject(index));
+    }
+
+    public Object getId(final T item) {
+        try {
+            return idProperty.field.get(item);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a new entity from the current row.
+     * @param rs the row set
+     * @return the new entity
+     */
+    public T newItem(final SqlRowSet rs) {
+        final int[] indexes = getIndexes(rs);
+        try {
+            final T item = type.getDeclaredConstructor().newInstance();
+            for (int i = 0; i < properties.size(); i++) {
+                if (indexes[i + 1] > 0) {
+                    final Property property = properties.get(i);
+                    property.reader.read(item, property.field, rs, indexes[i + 1]);
+                }
+            }
+            return item;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + type.getName() + ".", e);
+        }
+    }
+
+    /**
+     * Returns the index of the ID column followed by the column indexes of all properties. An
+     * index of 0 denotes that the column is not in the row set.
+     */
+    private int[] getIndexes(final SqlRowSet rs) {
+        int[] indexes = columnIndexes.get(rs);
+        if (indexes == null) {
+            indexes = resolveIndexes(rs.getMetaData());
+            columnIndexes.put(rs, indexes);
+        }
+        return indexes;
+    }
+
+    /**
+     * Releases the column indexes of a row set which is closed.
+     * @param rs the row set
+     */
+    public void release(final SqlRowSet rs) {
+        columnIndexes.remove(rs);
+    }
+
+    private int[] resolveIndexes(final SqlRowSetMetaData metaData) {
+        final Map<String, Integer> labels = new HashMap<>();
+        for (int i = metaData.getColumnCount(); i > 0; i--) {
+            labels.put(metaData.getColumnLabel(i).toUpperCase(), i);
+        }
+        final int[] indexes = new int[properties.size() + 1];
+        for (int i = 0; i < properties.size(); i++) {
+            final Integer index = labels.get((prefix + properties.get(i).column + suffix).toUpperCase());
+            indexes[i + 1] = index == null ? 0 : index;
+            if (properties.get(i) == idProperty) {
+                indexes[0] = indexes[i + 1];
+            }
+        }
+        return indexes;
+    }
+
+    private static ColumnReader getReader(final Class<?> fieldType) {
+        final ColumnReader reader;
+        if (fieldType == int.class) {
+            reader = (o, f, rs, i) -> f.setInt(o, rs.getInt(i));
+        } else if (fieldType == long.class) {
+            reader = (o, f, rs, i) -> f.setLong(o, rs.getLong(i));
+        } else if (fieldType == double.class) {
+            reader = (o, f, rs, i) -> f.setDouble(o, rs.getDouble(i));
+        } else if (fieldType == boolean.class) {
+            reader = (o, f, rs, i) -> f.setBoolean(o, rs.getBoolean(i));
+        } else if (fieldType == Integer.class) {
+            reader = (o, f, rs, i) -> {
+                final int v = rs.getInt(i);
+                f.set(o, rs.wasNull() ? null : v);
+            };
+        } else if (fieldType == Long.class) {
+            reader = (o, f, rs, i) -> {
+                final long v = rs.getLong(i);
+                f.set(o, rs.wasNull() ? null : v);
+            };
+        } else if (fieldType == Double.class) {
+            reader = (o, f, rs, i) -> {
+                final double v = rs.getDouble(i);
+                f.set(o, rs.wasNull() ? null : v);
+            };
+        } else if (fieldType == String.class) {
+            reader = (o, f, rs, i) -> f.set(o, rs.getString(i));
+        } else if (fieldType == BigDecimal.class) {
+            reader = (o, f, rs, i) -> f.set(o, rs.getBigDecimal(i));
+        } else if (fieldType == LocalDate.class) {
+            reader = (o, f, rs, i) -> {
+                final Date v = rs.getDate(i);
+                f.set(o, v == null ? null : v.toLocalDate());
+            };
+        } else if (fieldType == LocalDateTime.class) {
+            reader = (o, f, rs, i) -> {
+                final Timestamp v = rs.getTimestamp(i);
+                f.set(o, v == null ? null : v.toLocalDateTime());
+            };
+        } else {
+            reader = (o, f, rs, i) -> f.set(o, rs.getObject(i));
+        }
+        return reader;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(final String prefix) {
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(final String suffix) {
+        this.suffix = suffix == null ? "" : suffix;
+    }
+
+}
@@ -0,0 +1,74 @@
+package app.batch.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import app.model.CrudEntity;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+/**
+ * Structured item row mapper generated from the JPA metadata of the root entity and its child
+ * entities. Column indexes are resolved once per row set and values are read by index with typed
+ * accessors.
+ * <p>
+ * Child mappers whose ID column is not in the row set are ignored, so the same mapper can be used
+ * for the root query of {@code SplitFetchStructuredItemReader}.
+ */
+public class EntityStructuredRowMapper<T extends CrudEntity<?>> implements StructuredItemRowMapper<T> {
+
+    private final EntityRowMapping<T> mapping;
+
+    private List<EntityChildRowMapper<T, ?, ?>> childRowMappers = new ArrayList<>();
+
+    public EntityStructuredRowMapper(final Class<T> type) {
+        this.mapping = new EntityRowMapping<>(type);
+    }
+
+    @Override
+    public boolean isNewItem(final T item, final SqlRowSet rs, final int recordIndex) {
+        return !mapping.isSameId(item, rs);
+    }
+
+    @Override
+    public T newItem(final SqlRowSet rs, final int recordIndex) {
+        final T item = mapping.newItem(rs);
+        childRowMappers.forEach(mapper -> mapper.initItem(item));
+        return item;
+    }
+
+    @Override
+    public void updateItem(final T item, final SqlRowSet rs, final int recordIndex) {
+        childRowMappers.forEach(mapper -> mapper.updateItem(item, rs, recordIndex));
+    }
+
+    @Override
+    public Object getKey(final T item) {
+        return item.getId();
+    }
+
+    @Override
+    public void release(final SqlRowSet rs) {
+        mapping.release(rs);
+        childRowMappers.forEach(mapper -> mapper.release(rs));
+    }
+
+    public EntityRowMapping<T> getMapping() {
+        return mapping;
+    }
+
+    public void setPrefix(final String prefix) {
+        mapping.setPrefix(prefix);
+    }
+
+    public void setSuffix(final String suffix) {
+        mapping.setSuffix(suffix);
+    }
+
+    public List<EntityChildRowMapper<T, ?, ?>> getChildRowMappers() {
+        return childRowMappers;
+    }
+
+    public void setChildRowMappers(final List<EntityChildRowMapper<T, ?, ?>> childRowMappers) {
+        this.childRowMappers = childRowMappers;
+    }
+
+}
@@ -0,0 +1,45 @@
+package app.batch.mapper;
+
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+/**
+ * Row mapper implementation for a child collection of an object with nested structure, when the
+ * child rows are fetched by a separate query ordered by the parent key.
+ * @param <T> the type of the parent item
+ * @param <K> the type of the parent key
+ */
+public interface StructuredChildRowMapper<T, K extends Comparable<? super K>> {
+
+    /**
+     * Returns the key of the parent item. Parent keys are compared with the keys of the child
+     * rows, so they should be ordered the same way as the queries.
+     * @param item the parent item
+     * @return the parent key
+     */
+    K getParentKey(T item);
+
+    /**
+     * Compares the key of the parent item with the parent key of the current row.
+     * @param item the parent item
+     * @param rs the row set
+     * @return a negative number, zero or a positive number if the key of the item is less than,
+     * equal to or greater than the parent key of the row
+     */
+    int compareParentKey(T item, SqlRowSet rs);
+
+    /**
+     * Associates the parent item with the child data of the current row in the row set.
+     * @param item the parent item
+     * @param rs the row set
+     * @param recordIndex the record index of the parent item (starts from 1)
+     */
+    void updateItem(T item, SqlRowSet rs, int recordIndex);
+
+    /**
+     * Releases any state kept for a row set. It is invoked when the reader closes the row set.
+     * @param rs the row set
+     */
+    default void release(SqlRowSet rs) {
+    }
+
+}
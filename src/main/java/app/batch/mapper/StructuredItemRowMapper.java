@@ -36,4 +36,23 @@ public interface StructuredItemRowMapper<T> {
      */
     void updateItem(T item, SqlRowSet rs, int recordIndex);
 
+    /**
+     * Returns the key of an item as selected by the key column of the reader. The key of the last
+     * item read is saved in the execution context, so that a restarted reader can resume after it
+     * instead of reading all items again. Returns {@code null} if key based restart is not
+     * supported.
+     * @param item the item
+     * @return the key of the item
+     */
+    default Object getKey(T item) {
+        return null;
+    }
+
+    /**
+     * Releases any state kept for a row set. It is invoked when the reader closes the row set.
+     * @param rs the row set
+     */
+    default void release(SqlRowSet rs) {
+    }
+
 }
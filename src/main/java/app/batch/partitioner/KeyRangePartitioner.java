@@ -0,0 +1,116 @@
+package app.batch.partitioner;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.batch.core.partition.support.Partitioner;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Partitioner which splits the key space of a table into contiguous, inclusive key ranges.
+ * The bounds of each range are stored in the partition execution context under
+ * {@link #MIN_VALUE} and {@link #MAX_VALUE}, and the partition name under {@link #PARTITION_NAME},
+ * which marks the step execution of a partition. Since every row of a root item shares the same
+ * root key, a root item is never split across partitions.
+ */
+public class KeyRangePartitioner implements Partitioner, InitializingBean {
+
+    public static final String MIN_VALUE = "minValue";
+
+    public static final String MAX_VALUE = "maxValue";
+
+    public static final String PARTITION_NAME = "partitionName";
+
+    private DataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private String table;
+
+    private String column;
+
+    private String condition;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (dataSource == null) {
+            throw new IllegalStateException("Data source is not set.");
+        }
+        if (table == null) {
+            throw new IllegalStateException("Table is not defined.");
+        }
+        if (column == null) {
+            throw new IllegalStateException("Key column is not defined.");
+        }
+        if (jdbcTemplate == null) {
+            jdbcTemplate = new JdbcTemplate(dataSource);
+        }
+    }
+
+    @Override
+    public Map<String, ExecutionContext> partition(final int gridSize) {
+        final String sql = "select min(" + column + ") min_value, max(" + column + ") max_value from " + table
+            + (condition == null ? "" : " where " + condition);
+        final Map<String, Object> bounds = jdbcTemplate.queryForMap(sql);
+        final Number min = (Number) bounds.get("MIN_VALUE");
+        final Number max = (Number) bounds.get("MAX_VALUE");
+        final Map<String, ExecutionContext> partitions = new LinkedHashMap<>();
+        if (min == null || max == null) {
+            // no matching rows, a single partition with an empty key range reads nothing
+            partitions.put("partition0", createContext("partition0", 0L, -1L));
+        } else {
+            final long lb = min.longValue();
+            final long ub = max.longValue();
+            final long rangeSize = (ub - lb) / Math.max(gridSize, 1) + 1;
+            int i = 0;
+            for (long start = lb; start <= ub; start += rangeSize) {
+                final String name = "partition" + i++;
+                partitions.put(name, createContext(name, start, Math.min(start + rangeSize - 1, ub)));
+            }
+        }
+        return partitions;
+    }
+
+    private static ExecutionContext createContext(final String name, final long min, final long max) {
+        final ExecutionContext context = new ExecutionContext();
+        context.putString(PARTITION_NAME, name);
+        context.putLong(MIN_VALUE, min);
+        context.putLong(MAX_VALUE, max);
+        return context;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public void setDataSource(final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(final String table) {
+        this.table = table;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public void setColumn(final String column) {
+        this.column = column;
+    }
+
+    public String getCondition() {
+        return condition;
+    }
+
+    public void setCondition(final String condition) {
+        this.condition = condition;
+    }
+
+}
@@ -0,0 +1,163 @@
+package app.batch.reader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemStreamReader;
+
+/**
+ * Slave reader provider for small dimension sources, such as reference data. Instead of a slave
+ * reader per batch, the items of the source are read once into an immutable hash index by the key
+ * function, which is shared by all batches and probed without locks. The items of the index are
+ * merged into the batch items with the same key before the slave readers of the batch are opened.
+ * <p>
+ * It is not a {@link ForkableItemStreamReader.Provider}, as it never creates a slave reader, and is
+ * added to {@link ForkableItemStreamReader} and {@link FlowableItemStreamReader} as a broadcast
+ * provider. The index is loaded on first use and kept until {@link #clear()}, which the reader
+ * calls on close. The merge function must not modify the items of the index.
+ */
+public class BroadcastSlaveReaderProvider<T> {
+
+    private String name;
+
+    private ItemStreamReader<T> reader;
+
+    private Function<T, ?> keyFunction;
+
+    private BiFunction<T, T, T> mergeFunction;
+
+    private boolean useInnerJoin;
+
+    private volatile Map<Object, List<T>> index;
+
+    public BroadcastSlaveReaderProvider() {
+        this(null, null, null, false);
+    }
+
+    public BroadcastSlaveReaderProvider(final ItemStreamReader<T> reader,
+                                        final Function<T, ?> keyFunction,
+                                        final BiFunction<T, T, T> mergeFunction,
+                                        final boolean useInnerJoin) {
+        this.reader = reader;
+        this.keyFunction = keyFunction;
+        this.mergeFunction = mergeFunction;
+        this.useInnerJoin = useInnerJoin;
+    }
+
+    /**
+     * Merges the items of the index into the items with the same key.
+     * @param items the batch items
+     * @return the number of merges
+     */
+    public int merge(final Collection<T> items) {
+        final Map<Object, List<T>> index = getIndex();
+        int merges = 0;
+        for (final Iterator<T> it = items.iterator(); it.hasNext(); ) {
+            final T o = it.next();
+            final Object key = keyFunction.apply(o);
+            final List<T> matched = key == null ? null : index.get(key);
+            if (matched != null) {
+                matched.forEach(u -> mergeFunction.apply(o, u));
+                merges += matched.size();
+            } else if (useInnerJoin) {
+                it.remove();
+            }
+        }
+        return merges;
+    }
+
+    /**
+     * Returns the index of the source items by key, loading it on first use.
+     */
+    public Map<Object, List<T>> getIndex() {
+        Map<Object, List<T>> m = index;
+        if (m == null) {
+            synchronized (this) {
+                m = index;
+                if (m == null) {
+                    index = m = load();
+                }
+            }
+        }
+        return m;
+    }
+
+    private Map<Object, List<T>> load() {
+        if (reader == null || keyFunction == null || mergeFunction == null) {
+            throw new IllegalStateException("Reader, key function and merge function should be provided.");
+        }
+        final Map<Object, List<T>> m = new HashMap<>();
+        reader.open(new ExecutionContext());
+        try {
+            T o;
+            while ((o = reader.read()) != null) {
+                final Object key = keyFunction.apply(o);
+                if (key != null) {
+                    m.computeIfAbsent(key, k -> new ArrayList<>(1)).add(o);
+                }
+            }
+        } catch (Exception e) {
+            throw new ItemStreamException("Failed to load broadcast items.", e);
+        } finally {
+            reader.close();
+        }
+        m.replaceAll((k, v) -> Collections.unmodifiableList(v));
+        return Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * Releases the index, so it is loaded again on next use.
+     */
+    public void clear() {
+        index = null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    public ItemStreamReader<T> getReader() {
+        return reader;
+    }
+
+    public void setReader(final ItemStreamReader<T> reader) {
+        this.reader = reader;
+    }
+
+    public Function<T, ?> getKeyFunction() {
+        return keyFunction;
+    }
+
+    public void setKeyFunction(final Function<T, ?> keyFunction) {
+        this.keyFunction = keyFunction;
+    }
+
+    public BiFunction<T, T, T> getMergeFunction() {
+        return mergeFunction;
+    }
+
+    public void setMergeFunction(final BiFunction<T, T, T> mergeFunction) {
+        this.mergeFunction = mergeFunction;
+    }
+
+    public boolean isUseInnerJoin() {
+        return useInnerJoin;
+    }
+
+    public void setUseInnerJoin(final boolean useInnerJoin) {
+        this.useInnerJoin = useInnerJoin;
+    }
+
+}
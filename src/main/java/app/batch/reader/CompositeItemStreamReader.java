@@ -1,68 +1,359 @@
 package app.batch.reader;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.springframework.batch.item.ExecutionContext;
 import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.ItemStreamReader;
 import org.springframework.batch.item.support.AbstractItemCountingItemStreamItemReader;
+import org.springframework.util.ClassUtils;
 
 /**
  * Created by Liu on 9/24/2017.
+ * <p>
+ * Delegates are read one after another by default. Each delegate is opened when it becomes the
+ * current delegate and closed when it is exhausted, unless {@code lazyOpen} is {@code false}. The
+ * index of the current delegate and the item count at its start are saved in the execution context,
+ * so on restart the completed delegates are skipped and only the items read from the current
+ * delegate are read again.
+ * <p>
+ * In concurrent mode each delegate is read by its
+ * own worker into a buffer of at most {@code bufferSize} items shared by all workers, so the
+ * latency of the delegates overlaps and the items are interleaved in the order they are read. The
+ * order of the items is then not deterministic, so no state is saved for restart, and opening the
+ * reader with a saved item count fails.
+ * <p>
+ * With a comparator, the delegates must be sorted by the comparator and are merged into a single
+ * sorted stream through a heap of the next item of each delegate. Items comparing equal are read in
+ * the order of the delegates.
  */
 public class CompositeItemStreamReader<T> extends AbstractItemCountingItemStreamItemReader<T> {
 
+    private static final String DELEGATE_INDEX = "delegate.index";
+
+    private static final String DELEGATE_START = "delegate.start";
+
+    private static final Object DONE = new Object();
+
     private final Iterable<ItemStreamReader<T>> itemStreamReaders;
 
-    private Iterator<ItemStreamReader<T>> readerItr;
+    private List<ItemStreamReader<T>> readers;
 
     private ItemStreamReader<T> curReader;
 
+    private int curIndex;
+
+    // number of items read before the current delegate
+    private int curStart;
+
+    private boolean lazyOpen = true;
+
     private ExecutionContext executionContext;
 
+    private boolean concurrent;
+
+    private int bufferSize = 100;
+
+    private ExecutorService executor;
+
+    private Comparator<? super T> comparator;
+
+    // internal state variables of concurrent mode
+
+    private BlockingQueue<Object> buffer;
+
+    private Collection<CompletableFuture<Void>> workers;
+
+    private int activeWorkerCount;
+
+    private volatile boolean closed;
+
+    // next item of each delegate in merge mode
+    private PriorityQueue<Head<T>> heads;
+
+    /**
+     * Failure of a worker, rethrown by the reading thread.
+     */
+    private static class Failure {
+
+        private final Exception exception;
+
+        private Failure(final Exception exception) {
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Next item of a delegate in merge mode.
+     */
+    private static class Head<T> {
+
+        private final ItemStreamReader<T> reader;
+
+        private final int index;
+
+        private T item;
+
+        private Head(final ItemStreamReader<T> reader, final int index) {
+            this.reader = reader;
+            this.index = index;
+        }
+    }
+
+    @SafeVarargs
     public CompositeItemStreamReader(final ItemStreamReader<T>... itemStreamReaders) {
         this(Arrays.asList(itemStreamReaders));
     }
 
     public CompositeItemStreamReader(final Iterable<ItemStreamReader<T>> itemStreamReaders) {
         this.itemStreamReaders = itemStreamReaders;
-        setExecutionContextName("executionContext_" + toString());
+        setName(ClassUtils.getShortName(CompositeItemStreamReader.class));
     }
 
     @Override
     public void open(final ExecutionContext executionContext) throws ItemStreamException {
-        super.open(executionContext);
+        // delegates are opened with the execution context in doOpen
         this.executionContext = executionContext;
+        super.open(executionContext);
+    }
+
+    @Override
+    public void update(final ExecutionContext executionContext) throws ItemStreamException {
+        if (concurrent) {
+            // the items read before cannot be skipped on restart
+            return;
+        }
+        super.update(executionContext);
+        if (isSaveState() && isSequential()) {
+            executionContext.putInt(getExecutionContextKey(DELEGATE_INDEX), curIndex);
+            executionContext.putInt(getExecutionContextKey(DELEGATE_START), curStart);
+        }
+    }
+
+    @Override
+    protected void jumpToItem(final int itemIndex) throws Exception {
+        if (concurrent) {
+            throw new IllegalStateException("Reader in concurrent mode cannot be restarted from item " + itemIndex + ".");
+        }
+        if (!isSequential()) {
+            super.jumpToItem(itemIndex);
+            return;
+        }
+        // completed delegates are skipped already
+        for (int i = curStart; i < itemIndex; i++) {
+            setCurrentItemCount(i + 1);
+            if (doRead() == null) {
+                break;
+            }
+        }
     }
 
     @Override
     protected T doRead() throws Exception {
+        if (concurrent) {
+            return readBuffer();
+        }
+        if (comparator != null) {
+            return readHeads();
+        }
         T o = null;
-        for (boolean done = false; curReader != null && !done; ) {
-            o = curReader.read();
-            if (o == null && readerItr.hasNext()) {
-                curReader = readerItr.next();
+        while (curReader != null && (o = curReader.read()) == null) {
+            // the item being read is counted already
+            setCurrentReader(curIndex + 1, getCurrentItemCount() - 1);
+        }
+        return o;
+    }
+
+    private void setCurrentReader(final int index, final int start) {
+        if (lazyOpen && curReader != null) {
+            curReader.close();
+        }
+        curIndex = index;
+        curStart = start;
+        curReader = index < readers.size() ? readers.get(index) : null;
+        if (lazyOpen && curReader != null) {
+            curReader.open(executionContext);
+        }
+    }
+
+    private T readBuffer() throws Exception {
+        while (activeWorkerCount > 0) {
+            final Object o = buffer.take();
+            if (o == DONE) {
+                activeWorkerCount--;
+            } else if (o instanceof Failure) {
+                activeWorkerCount--;
+                throw ((Failure) o).exception;
             } else {
-                done = true;
+                // the buffer only holds the items, the failures and DONE
+                @SuppressWarnings("unchecked")
+                final T item = (T) o;
+                return item;
             }
         }
+        return null;
+    }
+
+    private T readHeads() throws Exception {
+        final Head<T> head = heads.poll();
+        if (head == null) {
+            return null;
+        }
+        final T o = head.item;
+        if (advance(head)) {
+            heads.add(head);
+        }
         return o;
     }
 
+    private boolean advance(final Head<T> head) throws Exception {
+        final T previous = head.item;
+        head.item = head.reader.read();
+        if (head.item != null && previous != null && comparator.compare(head.item, previous) < 0) {
+            throw new IllegalStateException("Items of delegate " + head.index + " are not sorted: " + head.item + " after " + previous + ".");
+        }
+        return head.item != null;
+    }
+
     @Override
     protected void doOpen() throws Exception {
-        itemStreamReaders.forEach(reader -> reader.open(executionContext));
-        if (readerItr == null) {
-            readerItr = itemStreamReaders.iterator();
-            if (readerItr.hasNext()) {
-                curReader = readerItr.next();
+        if (concurrent && comparator != null) {
+            throw new IllegalStateException("Concurrent mode cannot be used with a comparator.");
+        }
+        readers = new ArrayList<>();
+        itemStreamReaders.forEach(readers::add);
+        if (!lazyOpen || !isSequential()) {
+            readers.forEach(reader -> reader.open(executionContext));
+        }
+        if (concurrent) {
+            startWorkers();
+        } else if (comparator != null) {
+            final Comparator<Head<T>> c = (a, b) -> comparator.compare(a.item, b.item);
+            heads = new PriorityQueue<>(c.thenComparingInt(h -> h.index));
+            int i = 0;
+            for (ItemStreamReader<T> reader : itemStreamReaders) {
+                final Head<T> head = new Head<>(reader, i++);
+                if (advance(head)) {
+                    heads.add(head);
+                }
+            }
+        } else {
+            curReader = null;
+            if (isSaveState() && executionContext.containsKey(getExecutionContextKey(DELEGATE_INDEX))) {
+                setCurrentReader(executionContext.getInt(getExecutionContextKey(DELEGATE_INDEX)),
+                    executionContext.getInt(getExecutionContextKey(DELEGATE_START)));
+            } else {
+                setCurrentReader(0, 0);
+            }
+        }
+    }
+
+    private boolean isSequential() {
+        return !concurrent && comparator == null;
+    }
+
+    private void startWorkers() {
+        closed = false;
+        buffer = new ArrayBlockingQueue<>(Math.max(bufferSize, readers.size()));
+        final boolean hasOwnExecutor = executor == null;
+        final ExecutorService workerExecutor = hasOwnExecutor ? Executors.newFixedThreadPool(Math.max(readers.size(), 1)) : executor;
+        workers = new ArrayList<>();
+        activeWorkerCount = readers.size();
+        readers.forEach(reader -> workers.add(CompletableFuture.runAsync(() -> readDelegate(reader), workerExecutor)));
+        if (hasOwnExecutor) {
+            workerExecutor.shutdown();
+        }
+    }
+
+    private void readDelegate(final ItemStreamReader<T> reader) {
+        try {
+            T o;
+            while (!closed && (o = reader.read()) != null) {
+                put(o);
+            }
+            put(DONE);
+        } catch (Exception e) {
+            put(new Failure(e));
+        }
+    }
+
+    private void put(final Object o) {
+        try {
+            boolean offered = false;
+            // give up when the reader is closed before reading all items
+            while (!closed && !offered) {
+                offered = buffer.offer(o, 100, TimeUnit.MILLISECONDS);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     @Override
     protected void doClose() throws Exception {
-        itemStreamReaders.forEach(ItemStreamReader::close);
+        if (workers != null) {
+            closed = true;
+            buffer.clear();
+            // delegates are closed after their workers stop reading
+            workers.forEach(f -> f.handle((res, e) -> null).join());
+            workers = null;
+            buffer = null;
+        }
+        heads = null;
+        if (lazyOpen && isSequential()) {
+            if (curReader != null) {
+                curReader.close();
+                curReader = null;
+            }
+        } else {
+            itemStreamReaders.forEach(ItemStreamReader::close);
+        }
+    }
+
+    public boolean isLazyOpen() {
+        return lazyOpen;
+    }
+
+    public void setLazyOpen(final boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    public void setConcurrent(final boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public Comparator<? super T> getComparator() {
+        return comparator;
+    }
+
+    public void setComparator(final Comparator<? super T> comparator) {
+        this.comparator = comparator;
     }
 
 }
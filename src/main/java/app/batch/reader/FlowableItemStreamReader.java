@@ -0,0 +1,356 @@
+package app.batch.reader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemStreamReader;
+import org.springframework.batch.item.support.AbstractItemCountingItemStreamItemReader;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Reader running the pipeline of {@link ForkableItemStreamReader} on RxJava: items of the delegate
+ * are buffered into batches, each batch is filtered, mapped and merged with the items of the slave
+ * readers, and the items of the batches are read through a blocking iterator.
+ * <p>
+ * Every stage only reads ahead as far as requested downstream: the iterator requests at most
+ * {@code readBufferSize} items, and at most {@code parallelism} batches are processed at a time.
+ * Batches are read in the order of the delegate, or in the order of completion on parallel rails
+ * if {@code ordered} is {@code false}. The delegate is read by a single thread, and batches are
+ * processed on a pool of {@code parallelism} threads, on level 0 of an executor group, or on the
+ * given scheduler.
+ * <p>
+ * In ordered mode the item count is saved for restart and the items read before are skipped on
+ * restart. Unordered mode saves no state, and opening the reader with a saved item count fails.
+ * Close waits for the read thread, and for the processing pool if it is owned by the reader,
+ * before the delegate is closed.
+ * <p>
+ * The slave reader of a provider only describes the slave items of a batch: its delegate is read
+ * in the processing stage of the batch, in micro-batches of {@code batchSize} items which are
+ * filtered, mapped and merged with the items of its own providers the same way, and then merged
+ * into the batch items having the same key. No pipeline of {@link ForkableItemStreamReader} is
+ * started for a slave reader.
+ * <p>
+ * The items of the broadcast providers, see {@link BroadcastSlaveReaderProvider}, are merged from
+ * their shared index before the slave readers of a batch are read. The indexes are released on
+ * close.
+ */
+public class FlowableItemStreamReader<T> extends AbstractItemCountingItemStreamItemReader<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlowableItemStreamReader.class);
+
+    // properties
+
+    private ItemStreamReader<T> delegate;
+
+    private BiFunction<T, ExecutionContext, Collection<T>> mapper;
+
+    private BiPredicate<T, ExecutionContext> filter;
+
+    private Collection<ForkableItemStreamReader.Provider<T>> slaveReaderProviders;
+
+    private List<BroadcastSlaveReaderProvider<T>> broadcastProviders;
+
+    private Scheduler scheduler;
+
+    private ForkableExecutorGroup executorGroup;
+
+    private int batchSize = 100;
+
+    private int parallelism = 4;
+
+    private int readBufferSize = 1000;
+
+    private boolean ordered = true;
+
+    // internal state variables
+
+    private ExecutionContext executionContext;
+
+    private ExecutorService readExecutor;
+
+    private ExecutorService processExecutor;
+
+    private Iterator<T> iterator;
+
+    public FlowableItemStreamReader() {
+        this(null);
+    }
+
+    public FlowableItemStreamReader(final ItemStreamReader<T> delegate) {
+        this.delegate = delegate;
+        setName(ClassUtils.getShortName(FlowableItemStreamReader.class));
+    }
+
+    @Override
+    public void open(final ExecutionContext executionContext) {
+        this.executionContext = executionContext;
+        super.open(executionContext);
+    }
+
+    @Override
+    public void update(final ExecutionContext executionContext) throws ItemStreamException {
+        if (!ordered) {
+            // the items read before cannot be skipped on restart
+            return;
+        }
+        super.update(executionContext);
+    }
+
+    @Override
+    protected void jumpToItem(final int itemIndex) throws Exception {
+        if (!ordered) {
+            throw new IllegalStateException("Reader in unordered mode cannot be restarted from item " + itemIndex + ".");
+        }
+        super.jumpToItem(itemIndex);
+    }
+
+    @Override
+    protected void doOpen() throws Exception {
+        if (delegate == null) {
+            throw new IllegalStateException("Delegate item reader is not provided.");
+        }
+        delegate.open(executionContext);
+        readExecutor = Executors.newSingleThreadExecutor();
+        final Scheduler processScheduler;
+        if (scheduler != null) {
+            processScheduler = scheduler;
+        } else if (executorGroup != null) {
+            processScheduler = Schedulers.from(executorGroup.getExecutor(0));
+        } else {
+            processExecutor = Executors.newFixedThreadPool(Math.max(parallelism, 1));
+            processScheduler = Schedulers.from(processExecutor);
+        }
+        final Flowable<List<T>> batches = Flowable.<T>generate(emitter -> {
+            final T o = read(delegate);
+            if (o == null) {
+                emitter.onComplete();
+            } else {
+                emitter.onNext(o);
+            }
+        }).subscribeOn(Schedulers.from(readExecutor)).buffer(batchSize);
+        final Flowable<Collection<T>> processed;
+        if (ordered) {
+            processed = batches.concatMapEager(batch ->
+                Flowable.fromCallable(() -> processBatch(batch)).subscribeOn(processScheduler), parallelism, 1);
+        } else {
+            processed = batches.parallel(parallelism, 1).runOn(processScheduler, 1).map(this::processBatch).sequential(1);
+        }
+        iterator = processed.concatMapIterable(items -> items).blockingIterable(readBufferSize).iterator();
+    }
+
+    @Override
+    protected T doRead() throws Exception {
+        if (iterator == null) {
+            throw new IllegalStateException("Reader has not been opened.");
+        }
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        if (iterator instanceof Disposable) {
+            ((Disposable) iterator).dispose();
+        }
+        iterator = null;
+        // the read thread stops after the item being read once the iterator is disposed
+        awaitTermination(readExecutor);
+        readExecutor = null;
+        awaitTermination(processExecutor);
+        processExecutor = null;
+        if (broadcastProviders != null) {
+            broadcastProviders.forEach(BroadcastSlaveReaderProvider::clear);
+        }
+        if (delegate != null) {
+            delegate.close();
+        }
+    }
+
+    private void awaitTermination(final ExecutorService executor) throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.debug("Waiting for {} to terminate", executor);
+            }
+        }
+    }
+
+    private T read(final ItemStreamReader<T> reader) throws Exception {
+        T o;
+        try {
+            o = reader.read();
+        } catch (Exception e) {
+            LOGGER.error("Failed to read item from {}", reader, e);
+            // read another record
+            o = reader.read();
+        }
+        return o;
+    }
+
+    private Collection<T> processBatch(final List<T> batch) throws Exception {
+        return process(batch, filter, mapper, broadcastProviders, slaveReaderProviders);
+    }
+
+    /**
+     * Filters and maps the items, and merges the items of the broadcast providers and of the slave
+     * readers of the providers.
+     */
+    private List<T> process(final Collection<T> batch,
+                            final BiPredicate<T, ExecutionContext> filter,
+                            final BiFunction<T, ExecutionContext, Collection<T>> mapper,
+                            final Collection<BroadcastSlaveReaderProvider<T>> broadcasts,
+                            final Collection<ForkableItemStreamReader.Provider<T>> providers) throws Exception {
+        final List<T> items = batch.stream()
+            .filter(o -> filter == null || filter.test(o, executionContext))
+            .flatMap(o -> mapper == null ? Stream.of(o) : mapper.apply(o, executionContext).stream())
+            .collect(Collectors.toList());
+        if (broadcasts != null) {
+            broadcasts.forEach(provider -> provider.merge(items));
+        }
+        if (providers != null) {
+            for (ForkableItemStreamReader.Provider<T> provider : providers) {
+                merge(items, provider);
+            }
+        }
+        return items;
+    }
+
+    private void merge(final List<T> items, final ForkableItemStreamReader.Provider<T> provider) throws Exception {
+        final ForkableJoinIndex<T> index = new ForkableJoinIndex<>();
+        items.forEach(o -> {
+            final Object key = provider.getKeyFunction().apply(o);
+            if (key != null) {
+                index.insert(key, o);
+            }
+        });
+        final Set<T> matched = provider.isUseInnerJoin() ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+        final ForkableItemStreamReader<T> slaveReader = provider.apply(new ArrayList<>(items));
+        final ItemStreamReader<T> slaveDelegate = slaveReader.getDelegate();
+        if (slaveDelegate == null) {
+            throw new IllegalStateException("Delegate item reader of slave reader is not provided.");
+        }
+        slaveDelegate.open(executionContext);
+        try {
+            final List<T> buffer = new ArrayList<>(batchSize);
+            T o;
+            do {
+                o = read(slaveDelegate);
+                if (o != null) {
+                    buffer.add(o);
+                }
+                if (buffer.size() >= batchSize || o == null && !buffer.isEmpty()) {
+                    // the items of nested slave readers are merged into the slave items first
+                    for (T u : process(buffer, slaveReader.getFilter(), slaveReader.getMapper(),
+                                       slaveReader.getBroadcastProviders(), slaveReader.getSlaveReaderProviders())) {
+                        mergeSlaveItem(index, provider, u, matched);
+                    }
+                    buffer.clear();
+                }
+            } while (o != null);
+        } finally {
+            slaveDelegate.close();
+        }
+        if (matched != null) {
+            items.removeIf(o -> !matched.contains(o));
+        }
+    }
+
+    private void mergeSlaveItem(final ForkableJoinIndex<T> index,
+                                final ForkableItemStreamReader.Provider<T> provider,
+                                final T o,
+                                final Set<T> matched) {
+        final Object key = provider.getKeyFunction().apply(o);
+        if (key != null) {
+            final Collection<T> c = index.get(key);
+            for (T u : c) {
+                synchronized (u) {
+                    provider.getMergeFunction().apply(u, o);
+                }
+            }
+            if (matched != null) {
+                matched.addAll(c);
+            }
+        }
+    }
+
+    public ItemStreamReader<T> getDelegate() {
+        return delegate;
+    }
+
+    public void setDelegate(final ItemStreamReader<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    public void setMapper(final BiFunction<T, ExecutionContext, Collection<T>> mapper) {
+        this.mapper = mapper;
+    }
+
+    public void setFilter(final BiPredicate<T, ExecutionContext> filter) {
+        this.filter = filter;
+    }
+
+    public void setSlaveReaderProviders(final Collection<ForkableItemStreamReader.Provider<T>> slaveReaderProviders) {
+        this.slaveReaderProviders = slaveReaderProviders;
+    }
+
+    public void addSlaveReaderProvider(final ForkableItemStreamReader.Provider<T> slaveReaderProvider) {
+        if (slaveReaderProviders == null) {
+            slaveReaderProviders = new ArrayList<>();
+        }
+        slaveReaderProviders.add(slaveReaderProvider);
+    }
+
+    public void setBroadcastProviders(final List<BroadcastSlaveReaderProvider<T>> broadcastProviders) {
+        this.broadcastProviders = broadcastProviders;
+    }
+
+    public void addBroadcastProvider(final BroadcastSlaveReaderProvider<T> broadcastProvider) {
+        if (broadcastProviders == null) {
+            broadcastProviders = new ArrayList<>();
+        }
+        broadcastProviders.add(broadcastProvider);
+    }
+
+    public void setScheduler(final Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void setExecutorGroup(final ForkableExecutorGroup executorGroup) {
+        this.executorGroup = executorGroup;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setParallelism(final int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setReadBufferSize(final int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+    }
+
+    public void setOrdered(final boolean ordered) {
+        this.ordered = ordered;
+    }
+
+}
@@ -0,0 +1,187 @@
+package app.batch.reader;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named group of bounded thread pools for {@link ForkableItemStreamReader}, with one pool per
+ * level of the slave reader tree. A task of one level only waits for tasks of the next level, so
+ * parent batches waiting on slave readers cannot starve the slave readers of threads regardless
+ * of the pool size. When the queue of a pool is full the task runs in the submitting thread,
+ * which throttles the submitting level. Levels from {@code maxLevels} on have no pool, and their
+ * tasks run in the thread of the parent task.
+ * <p>
+ * The read and consume loops of each root reader run on a pair of pipeline threads. At most
+ * {@code maxRootReaders} root readers run at a time, and further root readers wait on open until
+ * a pair is released. The group therefore uses at most
+ * {@code threadsPerLevel * maxLevels + 2 * maxRootReaders} threads.
+ * <p>
+ * Groups are registered by name, so readers configured with the same name share their threads
+ * within the JVM. Threads are daemon threads and are released after being idle. A group is
+ * unregistered and its threads are stopped by {@link #shutdown()}.
+ */
+public class ForkableExecutorGroup {
+
+    private static final Map<String, ForkableExecutorGroup> GROUPS = new ConcurrentHashMap<>();
+
+    private static final int DEFAULT_MAX_LEVELS = 8;
+
+    private static final int DEFAULT_MAX_ROOT_READERS = 4;
+
+    // runs the tasks of the levels without pool in the submitting thread
+    private static final Executor CALLER_EXECUTOR = Runnable::run;
+
+    private final String name;
+
+    private final int threadsPerLevel;
+
+    private final int queueCapacity;
+
+    private final int maxLevels;
+
+    private final int maxRootReaders;
+
+    private final Map<Integer, ExecutorService> executors = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor pipelineExecutor;
+
+    private final Semaphore pipelinePermits;
+
+    private volatile boolean shutdown;
+
+    public ForkableExecutorGroup(final String name, final int threadsPerLevel, final int queueCapacity) {
+        this(name, threadsPerLevel, queueCapacity, DEFAULT_MAX_LEVELS, DEFAULT_MAX_ROOT_READERS);
+    }
+
+    public ForkableExecutorGroup(final String name, final int threadsPerLevel, final int queueCapacity,
+                                 final int maxLevels, final int maxRootReaders) {
+        if (threadsPerLevel < 1 || queueCapacity < 1 || maxLevels < 1 || maxRootReaders < 1) {
+            throw new IllegalArgumentException("Thread count, queue capacity, level count and root reader count should be positive.");
+        }
+        this.name = name;
+        this.threadsPerLevel = threadsPerLevel;
+        this.queueCapacity = queueCapacity;
+        this.maxLevels = maxLevels;
+        this.maxRootReaders = maxRootReaders;
+        final AtomicInteger threadCount = new AtomicInteger();
+        // the permits bound the tasks, so the queue never holds more than a pair per root reader
+        this.pipelineExecutor = new ThreadPoolExecutor(maxRootReaders * 2, maxRootReaders * 2,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            r -> newThread(name + "-pipeline-" + threadCount.incrementAndGet(), r));
+        this.pipelineExecutor.allowCoreThreadTimeOut(true);
+        this.pipelinePermits = new Semaphore(maxRootReaders, true);
+    }
+
+    /**
+     * Returns the group registered by the name, or registers a new group.
+     * @param name the group name, which is also the prefix of the thread names
+     * @param threadsPerLevel the maximum number of threads of each level
+     * @return the executor group
+     */
+    public static ForkableExecutorGroup get(final String name, final int threadsPerLevel) {
+        return GROUPS.computeIfAbsent(name, n -> new ForkableExecutorGroup(n, threadsPerLevel, threadsPerLevel * 4));
+    }
+
+    /**
+     * Shuts down all registered groups, e.g. when the application context is closed.
+     */
+    public static void shutdownAll() {
+        new ArrayList<>(GROUPS.values()).forEach(ForkableExecutorGroup::shutdown);
+    }
+
+    /**
+     * Returns the executor for tasks of a level in the reader tree. Level 0 runs the batches of
+     * the root reader, level {@code n} runs the slave readers forked from level {@code n - 1}.
+     * @param level the level
+     * @return the executor
+     */
+    public Executor getExecutor(final int level) {
+        if (level >= maxLevels) {
+            return CALLER_EXECUTOR;
+        }
+        return executors.computeIfAbsent(level, l -> {
+            if (shutdown) {
+                throw new IllegalStateException("Executor group " + name + " is shut down.");
+            }
+            final AtomicInteger threadCount = new AtomicInteger();
+            final ThreadFactory threadFactory = r -> newThread(name + "-" + l + "-" + threadCount.incrementAndGet(), r);
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threadsPerLevel, threadsPerLevel,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), threadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        });
+    }
+
+    /**
+     * Returns the executor for the long running read and consume loops of root readers. A root
+     * reader should only submit its loops after {@link #acquirePipeline()}.
+     * @return the executor
+     */
+    public Executor getPipelineExecutor() {
+        return pipelineExecutor;
+    }
+
+    /**
+     * Reserves a pair of pipeline threads for a root reader, waiting until a pair is released if
+     * {@code maxRootReaders} root readers are running.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquirePipeline() throws InterruptedException {
+        if (shutdown) {
+            throw new IllegalStateException("Executor group " + name + " is shut down.");
+        }
+        pipelinePermits.acquire();
+    }
+
+    /**
+     * Releases the pair of pipeline threads of a root reader whose loops have completed.
+     */
+    public void releasePipeline() {
+        pipelinePermits.release();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        GROUPS.remove(name, this);
+        executors.values().forEach(ExecutorService::shutdown);
+        pipelineExecutor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreadsPerLevel() {
+        return threadsPerLevel;
+    }
+
+    public int getMaxLevels() {
+        return maxLevels;
+    }
+
+    public int getMaxRootReaders() {
+        return maxRootReaders;
+    }
+
+    private static Thread newThread(final String threadName, final Runnable r) {
+        final Thread t = new Thread(r, threadName);
+        t.setDaemon(true);
+        return t;
+    }
+
+}
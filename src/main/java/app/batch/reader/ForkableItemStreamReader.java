@@ -1,21 +1,33 @@
 package app.batch.reader;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
@@ -24,9 +36,54 @@ import org.springframework.batch.item.ExecutionContext;
 import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.ItemStreamReader;
 import org.springframework.batch.item.support.AbstractItemCountingItemStreamItemReader;
+import org.springframework.util.ClassUtils;
 
 /**
  * Created by Liu on 9/21/2017.
+ * <p>
+ * By default the reader runs on its own cached thread pool, or on the given executor. With an
+ * {@link ForkableExecutorGroup} the number of threads is bounded: batches of the root reader run
+ * on level 0 of the group and slave readers forked from level {@code n} run on level
+ * {@code n + 1}, and the read and consume loops of the root reader run on a pair of pipeline
+ * threads of the group. Slave readers then process their batches in the thread which opens them.
+ * Otherwise the batches of a slave reader are processed in parallel, with at most
+ * {@code maxConcurrentBatchCount} batches in flight.
+ * <p>
+ * The root reader saves the index of the last batch fully read, the number of items read from
+ * the delegate up to that batch and the number of items already read from the next batch. On
+ * restart the delegate skips the items of the completed batches, and later batches, including
+ * their slave readers, are processed again; the items already read from the next batch are
+ * skipped. Slave readers do not save state. Root readers open in the same execution context must
+ * have distinct names.
+ * <p>
+ * Batches are read in the order of the delegate by default. In unordered mode each batch is read
+ * as soon as it completes, so a slow batch does not hold back the batches after it, and at most
+ * {@code maxConcurrentBatchCount} batches are processed or waiting to be read. The saved state
+ * then refers to the last batch up to which all batches have been read, and the items read after
+ * that batch are read again on restart.
+ * <p>
+ * Closing a root reader stops reading the delegate, and waits for the batches in flight and their
+ * slave readers before the delegate is closed.
+ * <p>
+ * Slave readers sorted by the same key as the delegate can be joined by
+ * {@link SortMergeJoinItemStreamReader} while reading the delegate of the root reader, instead of
+ * through the item pool. These are joined before the items are filtered and mapped.
+ * <p>
+ * Items of the broadcast providers, see {@link BroadcastSlaveReaderProvider}, are loaded once and
+ * merged from their shared index before the slave readers of a batch are opened, without forking
+ * a slave reader. Their metrics are named {@code broadcastN} unless the provider is named.
+ * <p>
+ * With {@code maxHeapItems} set, the items of the root batches waiting for slave readers are
+ * kept in a {@link ForkableSpillStore}, which spills them to disk beyond the budget, and the item
+ * pool only holds their handles. The heap is only released if the slave reader providers do not
+ * retain the items passed to them, as {@link JdbcSlaveReaderProvider} does not.
+ * <p>
+ * With a {@link ForkableTuner} the batch size and the number of concurrent batches of the root
+ * reader are tuned while reading, starting from {@code batchSize} and
+ * {@code maxConcurrentBatchCount}. The tuned values are saved in the execution context.
+ * <p>
+ * The metrics of the reader tree are registered in JMX under the reader name and the id of the
+ * reader instance while the root reader is open, and saved as a summary in the execution context. See {@link ForkableReaderMetrics}.
  */
 public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamItemReader<T> {
 
@@ -35,6 +92,28 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
     // poison object for terminating the read queue
     private static final Object DONE = new Object();
 
+    private static final String READ_COUNT = "read.count";
+
+    private static final String BATCH_INDEX = "batch.index";
+
+    private static final String DELEGATE_POSITION = "delegate.position";
+
+    private static final String BATCH_OFFSET = "batch.offset";
+
+    private static final String METRICS = "metrics";
+
+    // ids of the reader instances, for metrics
+    private static final AtomicLong INSTANCE_IDS = new AtomicLong();
+
+    // names of the open root readers by execution context, as their keys would overwrite each other
+    private static final Map<ExecutionContext, Set<String>> OPEN_NAMES = new IdentityHashMap<>();
+
+    private static final String TUNED_BATCH_SIZE = "tuned.batchSize";
+
+    private static final String TUNED_CONCURRENT_BATCH_COUNT = "tuned.maxConcurrentBatchCount";
+
+    private static final String ROOT_PATH = "root";
+
     // properties
 
     private ItemStreamReader<T> delegate;
@@ -49,32 +128,150 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
 
     private Collection<Provider<T>> slaveReaderProviders;
 
+    private List<BroadcastSlaveReaderProvider<T>> broadcastProviders;
+
+    private List<SortMergeJoinItemStreamReader.SortedSlave<T, ?>> sortedSlaves;
+
     private ExecutorService executor;
 
+    private ForkableExecutorGroup executorGroup;
+
     // internal state variables
 
+    private String name;
+
+    private int level;
+
+    private final long instanceId = INSTANCE_IDS.incrementAndGet();
+
+    // path of the reader in the tree, for metrics
+    private String path = ROOT_PATH;
+
+    private ForkableReaderMetrics metrics;
+
     private ForkableItemStreamReader<T> parent;
 
     private BlockingQueue<Object> readQueue;
 
     private BlockingQueue<Object> batchQueue;
 
-    private Map<Object, Map<Object, Collection<T>>> itemPool;
+    // key function to join index of the items waiting for slave readers
+    private Map<Function<T, ?>, ForkableJoinIndex<T>> itemPool;
+
+    // key function to join index of the handles of spilled items
+    private Map<Function<T, ?>, ForkableJoinIndex<Long>> handlePool;
 
-    private Collection<T> mergedItems;
+    private ForkableSpillStore<T> spillStore;
+
+    private Collection<Object> mergedItems;
+
+    // batches of a slave reader in flight
+    private Queue<CompletableFuture<Collection<T>>> slaveBatches;
 
     private ExecutionContext executionContext;
 
-    private Exception readException;
+    private volatile Exception readException;
 
     private boolean hasOwnExecutor;
 
+    private volatile boolean closed;
+
+    // the read loop stops once the batches are no longer consumed
+    private volatile boolean stopping;
+
+    private boolean cleanedUp;
+
+    // pipeline of the root reader, and its batches in flight
+    private CompletableFuture<?> pipeline;
+
+    private Set<CompletableFuture<?>> batchFutures;
+
+    private ExecutionContext namedContext;
+
+    // batch index and delegate position to restart from
+    private int startBatchIndex;
+
+    private long startPosition;
+
+    // checkpoint of the last batch fully read
+    private int lastBatchIndex;
+
+    private long lastPosition;
+
+    private int lastItemCount;
+
+    // items read from the batch after the checkpoint, and to skip of that batch on restart
+    private int batchOffset;
+
+    private int startOffset;
+
+    // batches read after a batch not yet read, in unordered mode
+    private SortedMap<Integer, Batch<?>> pendingBatches;
+
+    // limits the batches processed or waiting to be read in unordered or tuned mode
+    private BatchPermits batchPermits;
+
+    private int batchPermitCount;
+
+    // no more permits are tuned once all batches are submitted
+    private boolean batchPermitsFixed;
+
     private int batchSize = 100;     // default batch size
 
     private int maxConcurrentBatchCount = 20;
 
+    private boolean ordered = true;
+
+    private boolean jmxEnabled = true;
+
+    private ForkableTuner tuner;
+
+    private int maxHeapItems;
+
+    private String spillFile;
+
     private int readBufferSize = 1000;
 
+    /**
+     * Batch of the root reader. It is put into the read queue after its items to mark the end of
+     * the batch.
+     */
+    private static final class Batch<T> {
+
+        private final int index;
+
+        // number of items read from the delegate up to the end of the batch
+        private final long position;
+
+        private final CompletableFuture<Collection<T>> items;
+
+        // number of items put into the read queue
+        private int size;
+
+        private Batch(final int index, final long position, final CompletableFuture<Collection<T>> items) {
+            this.index = index;
+            this.position = position;
+            this.items = items;
+        }
+    }
+
+    /**
+     * Semaphore whose number of permits can be reduced.
+     */
+    private static final class BatchPermits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        private BatchPermits(final int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
     interface CheckedRunnable extends Runnable {
 
         void doRun() throws Exception;
@@ -103,6 +300,20 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
         }
     }
 
+    /**
+     * Key function of {@code int} or {@code long} keys, which are joined without boxing. Items
+     * must always have a key.
+     */
+    @FunctionalInterface
+    public interface LongKeyFunction<T> extends Function<T, Object>, ToLongFunction<T> {
+
+        @Override
+        default Object apply(final T t) {
+            return applyAsLong(t);
+        }
+
+    }
+
     public static class Provider<T> implements Function<Collection<T>, ForkableItemStreamReader<T>> {
 
         private Function<Collection<T>, ForkableItemStreamReader<T>> provider;
@@ -113,6 +324,8 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
 
         private boolean useInnerJoin;
 
+        private String name;
+
         public Provider(final Function<Collection<T>, ForkableItemStreamReader<T>> provider,
                         final Function<T, ?> keyFunction,
                         final BiFunction<T, T, T> mergeFunction,
@@ -147,6 +360,14 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
             this.mergeFunction = mergeFunction;
         }
 
+        public String getName() {
+            return name;
+        }
+
+        public void setName(final String name) {
+            this.name = name;
+        }
+
         public boolean isUseInnerJoin() {
             return useInnerJoin;
         }
@@ -173,13 +394,89 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
 
     public ForkableItemStreamReader(final ItemStreamReader<T> delegate) {
         this.delegate = delegate;
-        setExecutionContextName("executionContext_" + toString());
+        setName(ClassUtils.getShortName(ForkableItemStreamReader.class));
+    }
+
+    @Override
+    public void setName(final String name) {
+        super.setName(name);
+        this.name = name;
     }
 
     @Override
     public void open(final ExecutionContext executionContext) throws ItemStreamException {
         this.executionContext = executionContext;
-        super.open(executionContext);
+        startBatchIndex = 0;
+        startPosition = 0;
+        startOffset = 0;
+        if (parent == null && isSaveState()) {
+            registerName(executionContext);
+            if (executionContext.containsKey(getExecutionContextKey(BATCH_INDEX))) {
+                startBatchIndex = executionContext.getInt(getExecutionContextKey(BATCH_INDEX));
+                startPosition = executionContext.getLong(getExecutionContextKey(DELEGATE_POSITION));
+                if (ordered && executionContext.containsKey(getExecutionContextKey(BATCH_OFFSET))) {
+                    startOffset = executionContext.getInt(getExecutionContextKey(BATCH_OFFSET));
+                }
+            }
+        }
+        lastBatchIndex = startBatchIndex;
+        lastPosition = startPosition;
+        batchOffset = startOffset;
+        pendingBatches = new TreeMap<>();
+        try {
+            super.open(executionContext);
+        } catch (RuntimeException e) {
+            unregisterName();
+            throw e;
+        }
+        lastItemCount = getCurrentItemCount() - startOffset;
+    }
+
+    private void registerName(final ExecutionContext executionContext) {
+        synchronized (OPEN_NAMES) {
+            if (!OPEN_NAMES.computeIfAbsent(executionContext, k -> new HashSet<>()).add(name)) {
+                throw new IllegalStateException("Reader " + name + " is already open in the execution context.");
+            }
+        }
+        namedContext = executionContext;
+    }
+
+    private void unregisterName() {
+        if (namedContext != null) {
+            synchronized (OPEN_NAMES) {
+                final Set<String> names = OPEN_NAMES.get(namedContext);
+                names.remove(name);
+                if (names.isEmpty()) {
+                    OPEN_NAMES.remove(namedContext);
+                }
+            }
+            namedContext = null;
+        }
+    }
+
+    @Override
+    public void update(final ExecutionContext executionContext) throws ItemStreamException {
+        super.update(executionContext);
+        if (parent == null && isSaveState()) {
+            // in unordered mode the items read after the last completed batch are read again on restart
+            final int offset = ordered ? batchOffset : 0;
+            executionContext.putInt(getExecutionContextKey(READ_COUNT), lastItemCount + offset);
+            executionContext.putInt(getExecutionContextKey(BATCH_INDEX), lastBatchIndex);
+            executionContext.putLong(getExecutionContextKey(DELEGATE_POSITION), lastPosition);
+            executionContext.putInt(getExecutionContextKey(BATCH_OFFSET), offset);
+        }
+        if (parent == null && metrics != null) {
+            executionContext.put(getExecutionContextKey(METRICS), metrics.getSummary());
+        }
+        if (parent == null && tuner != null) {
+            executionContext.putInt(getExecutionContextKey(TUNED_BATCH_SIZE), tuner.getBatchSize());
+            executionContext.putInt(getExecutionContextKey(TUNED_CONCURRENT_BATCH_COUNT), tuner.getConcurrency());
+        }
+    }
+
+    @Override
+    protected void jumpToItem(final int itemIndex) throws Exception {
+        // the delegate skips the completed batches instead
     }
 
     @Override
@@ -188,30 +485,102 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
         if (readQueue == null) {
             throw new IllegalStateException("Read queue has not been initialized.");
         } else {
-            final Object t = readQueue.take();
+            Object t = readQueue.take();
+            while (t instanceof Batch) {
+                completeBatch((Batch<?>) t);
+                t = readQueue.take();
+            }
             if (readException != null) {
                 throw readException;
             }
-            o = t == DONE ? null : (T) t;
+            // the read queue only holds the items, the batches and DONE
+            @SuppressWarnings("unchecked")
+            final T item = (T) t;
+            o = t == DONE ? null : item;
+            if (o != null) {
+                batchOffset++;
+            }
         }
         return o;
     }
 
+    private void completeBatch(final Batch<?> batch) {
+        pendingBatches.put(batch.index, batch);
+        // advance the checkpoint over the batches read without gaps
+        while (!pendingBatches.isEmpty() && pendingBatches.firstKey() == lastBatchIndex + 1) {
+            final Batch<?> b = pendingBatches.remove(pendingBatches.firstKey());
+            lastBatchIndex = b.index;
+            lastPosition = b.position;
+            lastItemCount += b.size;
+            batchOffset = 0;
+        }
+    }
+
     @Override
     protected void doOpen() throws Exception {
-        hasOwnExecutor = executor == null;
-        if (executor == null) {
+        hasOwnExecutor = executor == null && executorGroup == null;
+        closed = false;
+        stopping = false;
+        cleanedUp = false;
+        readException = null;
+        batchFutures = ConcurrentHashMap.newKeySet();
+        if (hasOwnExecutor) {
             executor = Executors.newCachedThreadPool();
         }
         readQueue = new LinkedBlockingQueue<>(readBufferSize);
-        batchQueue = new LinkedBlockingQueue<>(maxConcurrentBatchCount);
+        slaveBatches = new ArrayDeque<>();
+        batchPermits = null;
+        batchPermitsFixed = false;
+        if (tuner != null && parent == null) {
+            tuner.init(batchSize, maxConcurrentBatchCount);
+        }
+        if (ordered && !isTuned()) {
+            batchQueue = new LinkedBlockingQueue<>(maxConcurrentBatchCount);
+        } else {
+            // batches are bounded by the permits
+            batchQueue = new LinkedBlockingQueue<>();
+            batchPermitCount = isTuned() ? tuner.getConcurrency() : maxConcurrentBatchCount;
+            batchPermits = new BatchPermits(batchPermitCount);
+        }
         if (itemPool == null) {
             itemPool = new ConcurrentHashMap<>();
         }
+        if (slaveReaderProviders == null) {
+            slaveReaderProviders = new ArrayList<>();
+        }
+        if (broadcastProviders == null) {
+            broadcastProviders = new ArrayList<>();
+        }
+        if (parent == null && sortedSlaves != null && !sortedSlaves.isEmpty()) {
+            delegate = new SortMergeJoinItemStreamReader<>(delegate, sortedSlaves);
+        }
+        if (parent == null && maxHeapItems > 0) {
+            spillStore = new ForkableSpillStore<>(spillFile, maxHeapItems);
+            handlePool = new ConcurrentHashMap<>();
+        }
         if (parent == null) {
+            final BlockingQueue<Object> r = readQueue;
+            final BlockingQueue<Object> b = batchQueue;
+            metrics = new ForkableReaderMetrics();
+            metrics.setQueues(r::size, b::size);
+            metrics.setItemPool(spillStore == null ? itemPool.values() : handlePool.values());
+            if (jmxEnabled) {
+                metrics.register(name, instanceId);
+            }
+            if (executorGroup != null) {
+                executorGroup.acquirePipeline();
+            }
             // async for root reader
-            final CompletableFuture<?> f = async(this::process);
-            f.whenComplete((res, e) -> {
+            final CompletableFuture<?> f;
+            try {
+                f = async(getPipelineExecutor(), this::process);
+            } catch (RuntimeException e) {
+                if (executorGroup != null) {
+                    executorGroup.releasePipeline();
+                }
+                throw e;
+            }
+            pipeline = f.whenComplete((res, e) -> {
                 if (e != null) {
                     readException = (Exception) e;
                     cleanup();
@@ -224,33 +593,120 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
 
     @Override
     protected void doClose() throws Exception {
-
+        if (parent == null && readQueue != null) {
+            // stop the pipeline of a root reader closed before reading all items
+            closed = true;
+            readQueue.clear();
+        }
+        if (pipeline != null) {
+            // the delegate is closed by the pipeline once the read loop and the batches have stopped
+            pipeline.handle((res, e) -> null).join();
+            pipeline = null;
+        }
+        if (parent == null) {
+            unregisterName();
+        }
+        if (parent == null && metrics != null) {
+            metrics.unregister();
+        }
+        if (parent == null && broadcastProviders != null) {
+            broadcastProviders.forEach(BroadcastSlaveReaderProvider::clear);
+        }
     }
 
     private void readItems() throws Exception {
         final List<T> itemBuffer = new ArrayList<>();
         T o;
-        int batchIndex = 0;
+        int batchIndex = startBatchIndex;
+        long position = skipDelegateItems(startPosition);
+        long readStart = System.nanoTime();
         do {
             try {
+                position++;
                 o = delegate.read();
             } catch (Exception e) {
                 LOGGER.error("Failed to read item from {}", delegate, e);
                 // read another record
+                position++;
                 o = delegate.read();
             }
             if (o != null) {
                 itemBuffer.add(o);
-                if (itemBuffer.size() == batchSize) {
-                    batchQueue.put(processItemBuffer(++batchIndex, itemBuffer));
+                if (itemBuffer.size() >= getBatchSize()) {
+                    metrics.record(path + ".read", readStart);
+                    putBatch(++batchIndex, position, processItemBuffer(batchIndex, itemBuffer));
+                    readStart = System.nanoTime();
                 }
             }
-        } while (o != null);
-        if (!itemBuffer.isEmpty()) {
+        } while (o != null && !closed && !stopping);
+        if (!itemBuffer.isEmpty() && !closed && !stopping) {
             // process remaining items
-            batchQueue.put(processItemBuffer(++batchIndex, itemBuffer));
+            metrics.record(path + ".read", readStart);
+            putBatch(++batchIndex, position, processItemBuffer(batchIndex, itemBuffer));
+        }
+        if (parent != null) {
+            while (!slaveBatches.isEmpty()) {
+                slaveBatches.remove().join();
+            }
+        } else {
+            if (!ordered && !stopping) {
+                // wait for all batches to be read
+                final int permits;
+                synchronized (this) {
+                    batchPermitsFixed = true;
+                    permits = batchPermitCount;
+                }
+                batchPermits.acquire(permits);
+            }
+            putBatchQueue(DONE);
+        }
+    }
+
+    private long skipDelegateItems(final long count) {
+        if (count > 0) {
+            LOGGER.info("Skipping {} items of completed batches", count);
+        }
+        long position = 0;
+        boolean hasNext = true;
+        while (position < count && hasNext) {
+            try {
+                position++;
+                hasNext = delegate.read() != null;
+            } catch (Exception e) {
+                LOGGER.warn("Failed to skip item of {}", delegate, e);
+            }
+        }
+        return position;
+    }
+
+    private void putBatch(final int batchIndex, final long position, final CompletableFuture<Collection<T>> f)
+        throws InterruptedException {
+        if (parent == null) {
+            final Batch<T> batch = new Batch<>(batchIndex, position, f);
+            if (batchPermits != null) {
+                batchPermits.acquire();
+            }
+            if (ordered) {
+                putBatchQueue(batch);
+                metrics.sampleQueues();
+            } else {
+                final BlockingQueue<Object> q = batchQueue;
+                f.whenComplete((res, e) -> q.add(batch));
+            }
+        } else {
+            // items of slave readers are merged into the item pool and not read from the queue
+            slaveBatches.add(f);
+            if (slaveBatches.size() >= Math.max(maxConcurrentBatchCount, 1)) {
+                slaveBatches.remove().join();
+            }
+        }
+    }
+
+    private void putBatchQueue(final Object o) throws InterruptedException {
+        // give up once the pipeline stops and the batch queue is no longer consumed
+        while (!stopping && !batchQueue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+            // retry
         }
-        batchQueue.put(DONE);
     }
 
     private void consumeBatchQueue() throws InterruptedException {
@@ -259,32 +715,125 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
             final Object o = batchQueue.take();
             done = o == null || o == DONE;
             if (!done) {
-                CompletableFuture<Collection<T>> cf = (CompletableFuture<Collection<T>>) o;
-                Collection<T> items = cf.join();
-                readQueue.addAll(items);
+                // the batch queue only holds the batches and DONE
+                @SuppressWarnings("unchecked")
+                final Batch<T> batch = (Batch<T>) o;
+                try {
+                    // items of the first batch read before the restart
+                    int skip = batch.index == startBatchIndex + 1 ? startOffset : 0;
+                    if (!closed) {
+                        for (T item : batch.items.join()) {
+                            if (closed) {
+                                break;
+                            }
+                            if (skip > 0) {
+                                skip--;
+                            } else {
+                                readQueue.put(item);
+                            }
+                            batch.size++;
+                        }
+                        metrics.sampleQueues();
+                    }
+                    if (!closed) {
+                        readQueue.put(batch);
+                    }
+                } finally {
+                    if (batchPermits != null) {
+                        batchPermits.release();
+                    }
+                }
             }
         }
     }
 
     private void process() {
         Objects.requireNonNull(delegate, "Delegate item reader is not provided.");
+        final boolean root = parent == null;
+        CompletableFuture<?> readLoop = null;
         try {
             delegate.open(executionContext);
-            async(this::readItems);
-            consumeBatchQueue();
+            if (root) {
+                final BlockingQueue<Object> q = batchQueue;
+                readLoop = async(getPipelineExecutor(), this::readItems).whenComplete((res, e) -> {
+                    if (e != null && readException == null) {
+                        readException = (Exception) e;
+                        LOGGER.error("Failed to read items.", e);
+                        q.offer(DONE);
+                    }
+                });
+                consumeBatchQueue();
+            } else {
+                // slave readers read in the calling thread and only wait for their own slaves
+                try {
+                    readItems();
+                } finally {
+                    // batches still in flight after a failure are not cleaned up under them
+                    slaveBatches.forEach(f -> f.handle((res, e) -> null).join());
+                    slaveBatches.clear();
+                }
+            }
         } catch (final Exception e) {
             LOGGER.error("Failed to process item reader.", e);
         } finally {
+            if (root) {
+                stopPipeline(readLoop);
+            }
             cleanup();
+            if (root && executorGroup != null) {
+                // the pipeline threads are released once both loops have completed
+                final ForkableExecutorGroup group = executorGroup;
+                if (readLoop == null) {
+                    group.releasePipeline();
+                } else {
+                    readLoop.whenComplete((res, e) -> group.releasePipeline());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the read loop and waits for the batches in flight, so the delegate and the spill store
+     * are not closed under them.
+     */
+    private void stopPipeline(final CompletableFuture<?> readLoop) {
+        stopping = true;
+        batchQueue.clear();
+        if (batchPermits != null) {
+            // unblock the read loop if the batches are no longer read
+            batchPermits.release(Math.max(batchPermitCount, 1));
         }
+        if (readLoop != null) {
+            readLoop.handle((res, e) -> null).join();
+        }
+        batchFutures.forEach(f -> f.handle((res, e) -> null).join());
     }
 
-    private void cleanup() {
+    private synchronized void cleanup() {
+        if (cleanedUp) {
+            return;
+        }
+        cleanedUp = true;
         if (hasOwnExecutor) {
             executor.shutdown();
         }
-        readQueue.add(DONE);
+        if (parent == null && spillStore != null) {
+            metrics.count("spill.count", spillStore.getSpillCount());
+            spillStore.close();
+            spillStore = null;
+        }
+        if (!closed && !readQueue.offer(DONE)) {
+            try {
+                readQueue.put(DONE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         batchQueue.clear();
+        if (batchPermits != null) {
+            // unblock the read loop if the batches are no longer read
+            batchPermits.release(Math.max(batchPermitCount, 1));
+        }
         delegate.close();
         parent = null;
         batchQueue = null;
@@ -304,84 +853,125 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
                                 final Function<T, ?> keyFunction,
                                 final BiFunction<T,T,T> mergeFunction,
                                 boolean insertOnly) {
-        if (keyFunction != null) {
-            final Object key = keyFunction == null ? null : keyFunction.apply(o);
-            if (key != null) {
-                // key - key function, value - map of item key and list of values
-                itemPool.compute(keyFunction, (pk, pv) -> {
-                    final Map<Object, Collection<T>> subPool = pv == null ? new ConcurrentHashMap<>() : pv;
-                    subPool.compute(key, (k, v) -> {
-                        final Collection<T> l = v == null ? ConcurrentHashMap.newKeySet() : v;
-                        if (insertOnly || l.isEmpty()) {
-                            l.add(o);
-                        } else if (mergeFunction != null) {
-                            l.forEach(u -> {
-                                synchronized (u) {
-                                    mergeFunction.apply(u, o);
-                                }
-                            });
-                            if (mergedItems != null) {
-                                mergedItems.addAll(l);
-                            }
-                        }
-                        return l;
-                    });
-                    return subPool;
-                });
+        if (keyFunction != null && spillStore != null) {
+            mergeSpilledItem(o, keyFunction, mergeFunction);
+        } else if (keyFunction != null) {
+            final ForkableJoinIndex<T> index = getJoinIndex(keyFunction);
+            final Collection<T> matched;
+            if (keyFunction instanceof LongKeyFunction) {
+                final long key = applyAsLong(keyFunction, o);
+                if (insertOnly) {
+                    index.insert(key, o);
+                    matched = null;
+                } else {
+                    matched = index.merge(key, o, mergeFunction);
+                }
+            } else {
+                final Object key = keyFunction.apply(o);
+                if (key == null) {
+                    matched = null;
+                } else if (insertOnly) {
+                    index.insert(key, o);
+                    matched = null;
+                } else {
+                    matched = index.merge(key, o, mergeFunction);
+                }
+            }
+            if (matched != null && mergeFunction != null) {
+                metrics.count(path + ".merge.count", matched.size());
+                if (mergedItems != null) {
+                    mergedItems.addAll(matched);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges an item into the spilled items of the same key, or adds the item to the spill store
+     * if there are none.
+     */
+    private void mergeSpilledItem(final T o,
+                                  final Function<T, ?> keyFunction,
+                                  final BiFunction<T,T,T> mergeFunction) {
+        final Object key = keyFunction.apply(o);
+        if (key != null) {
+            final ForkableJoinIndex<Long> index = getHandleIndex(keyFunction);
+            final Collection<Long> matched = index.get(key);
+            if (matched.isEmpty()) {
+                index.insert(key, spillStore.add(o));
+            } else if (mergeFunction != null) {
+                matched.forEach(h -> spillStore.update(h, u -> mergeFunction.apply(u, o)));
+                metrics.count(path + ".merge.count", matched.size());
+                if (mergedItems != null) {
+                    mergedItems.addAll(matched);
+                }
             }
         }
     }
 
+    // a long key function of the items of the reader
+    @SuppressWarnings("unchecked")
+    private static <T> long applyAsLong(final Function<T, ?> keyFunction, final T o) {
+        return ((LongKeyFunction<T>) keyFunction).applyAsLong(o);
+    }
+
+    private ForkableJoinIndex<Long> getHandleIndex(final Function<T, ?> keyFunction) {
+        final ForkableJoinIndex<Long> index = handlePool.get(keyFunction);
+        return index == null ? handlePool.computeIfAbsent(keyFunction, k -> new ForkableJoinIndex<>()) : index;
+    }
+
+    private ForkableJoinIndex<T> getJoinIndex(final Function<T, ?> keyFunction) {
+        // avoid locking the bin for the existing index
+        final ForkableJoinIndex<T> index = itemPool.get(keyFunction);
+        return index == null ? itemPool.computeIfAbsent(keyFunction, k -> new ForkableJoinIndex<>()) : index;
+    }
+
     private void clearItemPool(final Collection<T> items,
                                 final Function<T, ?> keyFunction) {
-        itemPool.compute(keyFunction, (pk, pv) -> {
-            if (pv != null) {
-                items.forEach(o -> {
-                    Object key = keyFunction.apply(o);
+        final ForkableJoinIndex<T> index = itemPool.get(keyFunction);
+        if (index != null) {
+            items.forEach(o -> {
+                if (keyFunction instanceof LongKeyFunction) {
+                    index.remove(applyAsLong(keyFunction, o));
+                } else {
+                    final Object key = keyFunction.apply(o);
                     if (key != null) {
-                        pv.compute(key, (k, v) -> {
-                            if (v != null) {
-                                v.clear();
-                            }
-                            return v;
-                        });
-                        pv.remove(key);
+                        index.remove(key);
                     }
-                });
-            }
-            return pv;
-        });
+                }
+            });
+        }
     }
 
     private CompletableFuture<Collection<T>> processItemBuffer(int batchIndex, final Collection<T> buffer) {
         final Collection<T> bufferCopy = new ArrayList<>(buffer);
-        final CompletableFuture<Collection<T>> f = async(() -> {
+        final BlockingQueue<Object> q = batchQueue;
+        final CheckedSupplier<Collection<T>> batch = () -> {
             if (parent == null) {
-                LOGGER.info("Processing batch {} (size = {}, queue size = {})", batchIndex, bufferCopy.size(), batchQueue.size());
+                LOGGER.info("Processing batch {} (size = {}, queue size = {})", batchIndex, bufferCopy.size(), q.size());
             }
+            final long processStart = System.nanoTime();
             final Collection<T> items = bufferCopy.stream()
                 .filter(o -> filter == null || filter.test(o, executionContext))
                 .flatMap(o -> mapper == null ? Stream.of(o) : mapper.apply(o, executionContext).stream())
                 .collect(Collectors.toList());
+            metrics.record(path + ".process", processStart);
+            broadcastProviders.forEach(provider -> {
+                final long probeStart = System.nanoTime();
+                metrics.count(path + "/" + getBroadcastProviderName(provider) + ".merge.count", provider.merge(items));
+                metrics.record(path + "/" + getBroadcastProviderName(provider) + ".probe", probeStart);
+            });
             if (keyFunction != null) {
                 // child reader merges items into the item pool from parent
                 items.forEach(o -> updateItemPool(o, keyFunction, mergeFunction, parent == null));
             }
-            if (slaveReaderProviders != null) {
+            if (!slaveReaderProviders.isEmpty() && parent == null && spillStore != null) {
+                joinSpilledItems(items);
+            } else if (!slaveReaderProviders.isEmpty()) {
                 // parent creates a slave item reader for each slave reader provider
                 final Collection<CompletableFuture<ForkableItemStreamReader<T>>> cfs = slaveReaderProviders.stream().map(provider -> {
                     items.forEach(o -> updateItemPool(o, provider.getKeyFunction(), provider.getMergeFunction(), parent == null));
-                    final ForkableItemStreamReader<T> slaveReader = provider.apply(items);
-                    slaveReader.parent = this;
-                    slaveReader.executor = executor;
-                    slaveReader.itemPool = itemPool;
-                    if (provider.useInnerJoin) {
-                        slaveReader.mergedItems = new HashSet<>();
-                    }
-                    return async(() -> {
-                        slaveReader.open(executionContext);
-                        return slaveReader;
-                    });
+                    return openSlaveReader(provider, provider.apply(items));
                 }).collect(Collectors.toList());
                 // wait for all slave item readers to complete
                 final Collection<ForkableItemStreamReader<T>> slaveReaders = cfs
@@ -402,28 +992,163 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
                 }
             }
             if (parent == null) {
-                LOGGER.info("Processed batch {} (size = {}, queue size = {})", batchIndex, items.size(), batchQueue.size());
+                LOGGER.info("Processed batch {} (size = {}, queue size = {})", batchIndex, items.size(), q.size());
             }
             return items;
-        }).whenComplete((res, e) -> {
-            if (e != null) {
-                readException = (Exception) e;
-                LOGGER.error("Encountered error", e);
-                batchQueue.add(DONE);
-            }
-        });
-        if (parent != null) {
-            f.join();
+        };
+        final CompletableFuture<Collection<T>> f;
+        if (parent == null) {
+            final long submitted = System.nanoTime();
+            f = async(getBatchExecutor(), batch).whenComplete((res, e) -> {
+                if (e != null) {
+                    readException = (Exception) e;
+                    LOGGER.error("Encountered error", e);
+                    q.offer(DONE);
+                } else if (isTuned()) {
+                    tuner.onBatchComplete(bufferCopy.size(), System.nanoTime() - submitted, readQueue.size(), readBufferSize);
+                    updateBatchPermits();
+                }
+            });
+            batchFutures.add(f);
+            f.whenComplete((res, e) -> batchFutures.remove(f));
+        } else if (executorGroup == null) {
+            f = async(getBatchExecutor(), batch);
+        } else {
+            // the levels of a bounded group are not blocked by waiting for slave batches
+            f = CompletableFuture.completedFuture(batch.get());
         }
         buffer.clear();
         return f;
     }
 
-    private CompletableFuture<Void> async(CheckedRunnable runnable) {
+    private CompletableFuture<ForkableItemStreamReader<T>> openSlaveReader(final Provider<T> provider,
+                                                                         final ForkableItemStreamReader<T> slaveReader) {
+        slaveReader.parent = this;
+        slaveReader.setSaveState(false);
+        slaveReader.executor = executor;
+        slaveReader.executorGroup = executorGroup;
+        slaveReader.level = level + 1;
+        slaveReader.itemPool = itemPool;
+        slaveReader.handlePool = handlePool;
+        slaveReader.spillStore = spillStore;
+        slaveReader.metrics = metrics;
+        slaveReader.path = path + "/" + getProviderName(provider);
+        if (provider.useInnerJoin) {
+            // batches of the slave reader merge concurrently
+            slaveReader.mergedItems = ConcurrentHashMap.newKeySet();
+        }
+        return async(getSlaveExecutor(), () -> {
+            final long openStart = System.nanoTime();
+            slaveReader.open(executionContext);
+            metrics.record(slaveReader.path + ".open", openStart);
+            return slaveReader;
+        });
+    }
+
+    /**
+     * Joins the items of a root batch through the spill store. The batch only keeps the handles of
+     * its items while the slave readers run, and reloads the items afterwards.
+     */
+    private void joinSpilledItems(final Collection<T> items) {
+        final Map<T, Long> handles = new IdentityHashMap<>();
+        final List<Long> itemHandles = new ArrayList<>(items.size());
+        items.forEach(o -> itemHandles.add(handles.computeIfAbsent(o, spillStore::add)));
+        final Map<Function<T, ?>, List<Object>> keys = new HashMap<>();
+        final Collection<CompletableFuture<ForkableItemStreamReader<T>>> cfs = slaveReaderProviders.stream().map(provider -> {
+            final Function<T, ?> f = provider.getKeyFunction();
+            final ForkableJoinIndex<Long> index = getHandleIndex(f);
+            final List<Object> providerKeys = keys.computeIfAbsent(f, k -> new ArrayList<>());
+            handles.forEach((o, h) -> {
+                final Object key = f.apply(o);
+                if (key != null) {
+                    index.insert(key, h);
+                    providerKeys.add(key);
+                }
+            });
+            // the provider gets its own copy, so the batch items can be released
+            return openSlaveReader(provider, provider.apply(new ArrayList<>(items)));
+        }).collect(Collectors.toList());
+        handles.clear();
+        items.clear();
+        final Collection<ForkableItemStreamReader<T>> slaveReaders = cfs
+            .stream().map(CompletableFuture::join).collect(Collectors.toList());
+        // remove the keys of the batch, and the unmatched slave items added for these keys
+        final Set<Long> batchHandles = new HashSet<>(itemHandles);
+        keys.forEach((f, providerKeys) -> {
+            final ForkableJoinIndex<Long> index = getHandleIndex(f);
+            providerKeys.forEach(key -> {
+                index.get(key).stream().filter(h -> !batchHandles.contains(h)).forEach(spillStore::remove);
+                index.remove(key);
+            });
+        });
+        slaveReaders.forEach(slaveReader -> {
+            if (slaveReader.mergedItems != null) {
+                itemHandles.removeIf(h -> !slaveReader.mergedItems.contains(h));
+                slaveReader.mergedItems = null;
+            }
+        });
+        itemHandles.forEach(h -> items.add(spillStore.get(h)));
+        batchHandles.forEach(spillStore::remove);
+    }
+
+    private boolean isTuned() {
+        return tuner != null && parent == null;
+    }
+
+    private int getBatchSize() {
+        return isTuned() ? tuner.getBatchSize() : batchSize;
+    }
+
+    private synchronized void updateBatchPermits() {
+        final int permits = tuner.getConcurrency();
+        if (!batchPermitsFixed && permits != batchPermitCount) {
+            if (permits > batchPermitCount) {
+                batchPermits.release(permits - batchPermitCount);
+            } else {
+                batchPermits.reducePermits(batchPermitCount - permits);
+            }
+            batchPermitCount = permits;
+        }
+    }
+
+    private String getProviderName(final Provider<T> provider) {
+        if (provider.getName() != null) {
+            return provider.getName();
+        }
+        int i = 0;
+        for (Provider<T> p : slaveReaderProviders) {
+            if (p == provider) {
+                break;
+            }
+            i++;
+        }
+        return "provider" + i;
+    }
+
+    private String getBroadcastProviderName(final BroadcastSlaveReaderProvider<T> provider) {
+        if (provider.getName() != null) {
+            return provider.getName();
+        }
+        return "broadcast" + broadcastProviders.indexOf(provider);
+    }
+
+    private Executor getPipelineExecutor() {
+        return executorGroup == null ? executor : executorGroup.getPipelineExecutor();
+    }
+
+    private Executor getBatchExecutor() {
+        return executorGroup == null ? executor : executorGroup.getExecutor(level);
+    }
+
+    private Executor getSlaveExecutor() {
+        return executorGroup == null ? executor : executorGroup.getExecutor(level + 1);
+    }
+
+    private CompletableFuture<Void> async(Executor executor, CheckedRunnable runnable) {
         return CompletableFuture.runAsync(runnable, executor);
     }
 
-    private <U> CompletableFuture<U> async(CheckedSupplier<U> supplier) {
+    private <U> CompletableFuture<U> async(Executor executor, CheckedSupplier<U> supplier) {
         return CompletableFuture.supplyAsync(supplier, executor);
     }
 
@@ -443,10 +1168,18 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
         this.mergeFunction = mergeFunction;
     }
 
+    public BiFunction<T, ExecutionContext, Collection<T>> getMapper() {
+        return mapper;
+    }
+
     public void setMapper(final BiFunction<T, ExecutionContext, Collection<T>> mapper) {
         this.mapper = mapper;
     }
 
+    public BiPredicate<T, ExecutionContext> getFilter() {
+        return filter;
+    }
+
     public void setFilter(final BiPredicate<T, ExecutionContext> filter) {
         this.filter = filter;
     }
@@ -455,10 +1188,57 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
         this.batchSize = batchSize;
     }
 
+    public void setMaxConcurrentBatchCount(final int maxConcurrentBatchCount) {
+        this.maxConcurrentBatchCount = maxConcurrentBatchCount;
+    }
+
+    public void setOrdered(final boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public void setSortedSlaves(final List<SortMergeJoinItemStreamReader.SortedSlave<T, ?>> sortedSlaves) {
+        this.sortedSlaves = sortedSlaves;
+    }
+
+    public void addSortedSlave(final SortMergeJoinItemStreamReader.SortedSlave<T, ?> sortedSlave) {
+        if (sortedSlaves == null) {
+            sortedSlaves = new ArrayList<>();
+        }
+        sortedSlaves.add(sortedSlave);
+    }
+
+    public void setMaxHeapItems(final int maxHeapItems) {
+        this.maxHeapItems = maxHeapItems;
+    }
+
+    public void setSpillFile(final String spillFile) {
+        this.spillFile = spillFile;
+    }
+
+    public void setTuner(final ForkableTuner tuner) {
+        this.tuner = tuner;
+    }
+
+    public void setJmxEnabled(final boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public ForkableReaderMetrics getMetrics() {
+        return metrics;
+    }
+
     public void setExecutor(final ExecutorService executor) {
         this.executor = executor;
     }
 
+    public void setExecutorGroup(final ForkableExecutorGroup executorGroup) {
+        this.executorGroup = executorGroup;
+    }
+
+    public Collection<Provider<T>> getSlaveReaderProviders() {
+        return slaveReaderProviders;
+    }
+
     public void setSlaveReaderProviders(final Collection<Provider<T>> slaveReaderProviders) {
         this.slaveReaderProviders = slaveReaderProviders;
     }
@@ -470,4 +1250,19 @@ public class ForkableItemStreamReader<T> extends AbstractItemCountingItemStreamI
         slaveReaderProviders.add(slaveReaderProvider);
     }
 
+    public List<BroadcastSlaveReaderProvider<T>> getBroadcastProviders() {
+        return broadcastProviders;
+    }
+
+    public void setBroadcastProviders(final List<BroadcastSlaveReaderProvider<T>> broadcastProviders) {
+        this.broadcastProviders = broadcastProviders;
+    }
+
+    public void addBroadcastProvider(final BroadcastSlaveReaderProvider<T> broadcastProvider) {
+        if (broadcastProviders == null) {
+            broadcastProviders = new ArrayList<>();
+        }
+        broadcastProviders.add(broadcastProvider);
+    }
+
 }
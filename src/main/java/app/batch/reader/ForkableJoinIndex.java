@@ -0,0 +1,301 @@
+package app.batch.reader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Concurrent join index of {@link ForkableItemStreamReader}, which maps join keys to the parent
+ * items waiting for the items of a slave reader. Keys are spread over lock stripes, so inserts and
+ * merges of different keys rarely contend. Keys passed to the {@code long} overloads, such as the
+ * keys of a {@link ForkableItemStreamReader.LongKeyFunction}, are stored unboxed in an open
+ * addressing table apart from the object keys, so a {@code long} key never matches an object key.
+ * Object keys are matched by {@code equals}, so an {@code Integer} key does not match a
+ * {@code Long} key. A key with a single item holds the item itself instead of a collection.
+ * <p>
+ * An item is only indexed once per key, as determined by identity.
+ */
+public class ForkableJoinIndex<T> {
+
+    private static final int STRIPE_COUNT = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    private final AtomicInteger keyCount = new AtomicInteger();
+
+    // items of a key with more than one item, distinguishable from an item which is itself a list
+    private static final class Bag extends ArrayList<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Bag(final Object a, final Object b) {
+            super(4);
+            add(a);
+            add(b);
+        }
+    }
+
+    private static final class Stripe {
+
+        private Map<Object, Object> objectKeys;
+
+        private LongTable longKeys;
+    }
+
+    /**
+     * Open addressing table with linear probing. A {@code null} value marks a free slot.
+     */
+    private static final class LongTable {
+
+        private long[] keys = new long[16];
+
+        private Object[] values = new Object[16];
+
+        private int size;
+
+        private int indexOf(final long key) {
+            final int mask = keys.length - 1;
+            int i = spread(Long.hashCode(key)) & mask;
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private Object get(final long key) {
+            return values[indexOf(key)];
+        }
+
+        private void put(final long key, final Object value) {
+            final int i = indexOf(key);
+            if (values[i] == null) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (size * 4 > keys.length * 3) {
+                resize();
+            }
+        }
+
+        private boolean remove(final long key) {
+            int i = indexOf(key);
+            final boolean found = values[i] != null;
+            if (found) {
+                values[i] = null;
+                size--;
+                // shift back the following entries of the probe sequence
+                final int mask = keys.length - 1;
+                for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                    final int home = spread(Long.hashCode(keys[j])) & mask;
+                    if (((j - home) & mask) >= ((j - i) & mask)) {
+                        keys[i] = keys[j];
+                        values[i] = values[j];
+                        values[j] = null;
+                        i = j;
+                    }
+                }
+            }
+            return found;
+        }
+
+        private void resize() {
+            final long[] oldKeys = keys;
+            final Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+
+    public ForkableJoinIndex() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Adds an item to the items of a key.
+     * @param key the join key
+     * @param item the item
+     */
+    public void insert(final Object key, final T item) {
+        final Stripe stripe = stripe(key.hashCode());
+        synchronized (stripe) {
+            if (stripe.objectKeys == null) {
+                stripe.objectKeys = new HashMap<>();
+            }
+            final Object current = stripe.objectKeys.get(key);
+            if (current == null) {
+                keyCount.incrementAndGet();
+            }
+            stripe.objectKeys.put(key, add(current, item));
+        }
+    }
+
+    public void insert(final long key, final T item) {
+        final Stripe stripe = stripe(Long.hashCode(key));
+        synchronized (stripe) {
+            if (stripe.longKeys == null) {
+                stripe.longKeys = new LongTable();
+            }
+            final Object current = stripe.longKeys.get(key);
+            if (current == null) {
+                keyCount.incrementAndGet();
+            }
+            stripe.longKeys.put(key, add(current, item));
+        }
+    }
+
+    /**
+     * Merges an item into all items of a key, or adds the item if the key has no items. Each
+     * merge is synchronized on the item merged into.
+     * @param key the join key
+     * @param item the item to merge
+     * @param mergeFunction the merge function, or {@code null} to only find the matched items
+     * @return the matched items, or an empty collection if the item was added
+     */
+    public Collection<T> merge(final Object key, final T item, final BiFunction<T, T, T> mergeFunction) {
+        final Collection<T> matched;
+        final Stripe stripe = stripe(key.hashCode());
+        synchronized (stripe) {
+            if (stripe.objectKeys == null) {
+                stripe.objectKeys = new HashMap<>();
+            }
+            matched = items(stripe.objectKeys.get(key));
+            if (matched.isEmpty()) {
+                keyCount.incrementAndGet();
+                stripe.objectKeys.put(key, item);
+            }
+        }
+        return merge(matched, item, mergeFunction);
+    }
+
+    public Collection<T> merge(final long key, final T item, final BiFunction<T, T, T> mergeFunction) {
+        final Collection<T> matched;
+        final Stripe stripe = stripe(Long.hashCode(key));
+        synchronized (stripe) {
+            if (stripe.longKeys == null) {
+                stripe.longKeys = new LongTable();
+            }
+            matched = items(stripe.longKeys.get(key));
+            if (matched.isEmpty()) {
+                keyCount.incrementAndGet();
+                stripe.longKeys.put(key, item);
+            }
+        }
+        return merge(matched, item, mergeFunction);
+    }
+
+    /**
+     * Returns the items of a key.
+     * @param key the join key
+     * @return the items, or an empty collection if the key has no items
+     */
+    public Collection<T> get(final Object key) {
+        final Stripe stripe = stripe(key.hashCode());
+        synchronized (stripe) {
+            return items(stripe.objectKeys == null ? null : stripe.objectKeys.get(key));
+        }
+    }
+
+    public Collection<T> get(final long key) {
+        final Stripe stripe = stripe(Long.hashCode(key));
+        synchronized (stripe) {
+            return items(stripe.longKeys == null ? null : stripe.longKeys.get(key));
+        }
+    }
+
+    /**
+     * Removes all items of a key.
+     * @param key the join key
+     */
+    public void remove(final Object key) {
+        final Stripe stripe = stripe(key.hashCode());
+        synchronized (stripe) {
+            if (stripe.objectKeys != null && stripe.objectKeys.remove(key) != null) {
+                keyCount.decrementAndGet();
+            }
+        }
+    }
+
+    public void remove(final long key) {
+        final Stripe stripe = stripe(Long.hashCode(key));
+        synchronized (stripe) {
+            if (stripe.longKeys != null && stripe.longKeys.remove(key)) {
+                keyCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys with items.
+     * @return the number of keys
+     */
+    public int size() {
+        return keyCount.get();
+    }
+
+    private Collection<T> merge(final Collection<T> matched, final T item, final BiFunction<T, T, T> mergeFunction) {
+        if (mergeFunction != null) {
+            matched.forEach(u -> {
+                synchronized (u) {
+                    mergeFunction.apply(u, item);
+                }
+            });
+        }
+        return matched;
+    }
+
+    private static Object add(final Object current, final Object item) {
+        final Object o;
+        if (current == null) {
+            o = item;
+        } else if (current instanceof Bag) {
+            final Bag bag = (Bag) current;
+            for (Object u : bag) {
+                if (u == item) {
+                    return bag;
+                }
+            }
+            bag.add(item);
+            o = bag;
+        } else {
+            o = current == item ? current : new Bag(current, item);
+        }
+        return o;
+    }
+
+    // bags are copied as they are only accessed under the stripe lock
+    @SuppressWarnings("unchecked")
+    private Collection<T> items(final Object o) {
+        final Collection<T> c;
+        if (o == null) {
+            c = Collections.emptyList();
+        } else if (o instanceof Bag) {
+            c = new ArrayList<>((Collection<T>) o);
+        } else {
+            c = Collections.singletonList((T) o);
+        }
+        return c;
+    }
+
+    private Stripe stripe(final int hash) {
+        return stripes[spread(hash) & (STRIPE_COUNT - 1)];
+    }
+
+    private static int spread(final int h) {
+        final int x = h * 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+
+}
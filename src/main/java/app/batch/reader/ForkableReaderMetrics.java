@@ -0,0 +1,193 @@
+package app.batch.reader;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * Metrics of the readers of a {@link ForkableItemStreamReader} tree. Stages are timed by the path
+ * of the reader in the tree, which is {@code root} for the root reader and the path of the parent
+ * followed by {@code /} and the provider name for slave readers:
+ * <ul>
+ * <li>{@code <path>.read} - reading the items of a batch from the delegate</li>
+ * <li>{@code <path>.process} - filtering and mapping the items of a batch</li>
+ * <li>{@code <path>.open} - opening a slave reader until all its items are merged</li>
+ * </ul>
+ * Each timer is summarized as {@code count}, {@code timeMillis} and {@code maxMillis}. Merges are
+ * counted by path as {@code <path>.merge.count}. Queue sizes are sampled when items are queued.
+ * <p>
+ * The metrics are registered in JMX as
+ * {@code app.batch:type=ForkableItemStreamReader,name=<reader name>,id=<reader id>}.
+ */
+public class ForkableReaderMetrics implements ForkableReaderMetricsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForkableReaderMetrics.class);
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final AtomicLong maxReadQueueSize = new AtomicLong();
+
+    private final AtomicLong maxBatchQueueSize = new AtomicLong();
+
+    private volatile IntSupplier readQueueSize = () -> 0;
+
+    private volatile IntSupplier batchQueueSize = () -> 0;
+
+    private volatile Collection<? extends ForkableJoinIndex<?>> itemPool = Collections.emptyList();
+
+    private ObjectName objectName;
+
+    private static final class Timer {
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder nanos = new LongAdder();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(final long n) {
+            count.increment();
+            nanos.add(n);
+            maxNanos.accumulateAndGet(n, Math::max);
+        }
+    }
+
+    /**
+     * Records the time of a stage.
+     * @param stage the stage, prefixed by the reader path
+     * @param startNanos the start time from {@link System#nanoTime()}
+     */
+    public void record(final String stage, final long startNanos) {
+        timers.computeIfAbsent(stage, k -> new Timer()).record(System.nanoTime() - startNanos);
+    }
+
+    public void count(final String counter, final long n) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(n);
+    }
+
+    void sampleQueues() {
+        maxReadQueueSize.accumulateAndGet(readQueueSize.getAsInt(), Math::max);
+        maxBatchQueueSize.accumulateAndGet(batchQueueSize.getAsInt(), Math::max);
+    }
+
+    void setQueues(final IntSupplier readQueueSize, final IntSupplier batchQueueSize) {
+        this.readQueueSize = readQueueSize;
+        this.batchQueueSize = batchQueueSize;
+    }
+
+    void setItemPool(final Collection<? extends ForkableJoinIndex<?>> itemPool) {
+        this.itemPool = itemPool;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server.
+     * @param name the reader name
+     * @param id the id of the reader instance
+     * @throws IllegalStateException if metrics of the same name and id are registered
+     */
+    public synchronized void register(final String name, final long id) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName o;
+        try {
+            o = new ObjectName("app.batch:type=ForkableItemStreamReader,name=" + ObjectName.quote(name) + ",id=" + id);
+            server.registerMBean(new StandardMBean(this, ForkableReaderMetricsMBean.class), o);
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("Metrics of reader " + name + " with id " + id + " are already registered.", e);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register metrics of {}", name, e);
+            return;
+        }
+        objectName = o;
+    }
+
+    /**
+     * Returns the summary saved in the execution context by the root reader.
+     * @param executionContext the execution context
+     * @param key the key of the summary, e.g. {@code ForkableItemStreamReader.metrics}
+     * @return the summary, or {@code null} if no summary is saved
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Long> getSummary(final ExecutionContext executionContext, final String key) {
+        return (Map<String, Long>) executionContext.get(key);
+    }
+
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.debug("Metrics {} are already unregistered", objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public int getReadQueueSize() {
+        return readQueueSize.getAsInt();
+    }
+
+    @Override
+    public int getMaxReadQueueSize() {
+        return (int) maxReadQueueSize.get();
+    }
+
+    @Override
+    public int getBatchQueueSize() {
+        return batchQueueSize.getAsInt();
+    }
+
+    @Override
+    public int getMaxBatchQueueSize() {
+        return (int) maxBatchQueueSize.get();
+    }
+
+    @Override
+    public int getItemPoolSize() {
+        return itemPool.stream().mapToInt(ForkableJoinIndex::size).sum();
+    }
+
+    @Override
+    public long getMergeCount() {
+        return counters.entrySet().stream()
+            .filter(e -> e.getKey().endsWith(".merge.count"))
+            .mapToLong(e -> e.getValue().sum()).sum();
+    }
+
+    @Override
+    public Map<String, Long> getSummary() {
+        final Map<String, Long> summary = new TreeMap<>();
+        timers.forEach((stage, timer) -> {
+            summary.put(stage + ".count", timer.count.sum());
+            summary.put(stage + ".timeMillis", TimeUnit.NANOSECONDS.toMillis(timer.nanos.sum()));
+            summary.put(stage + ".maxMillis", TimeUnit.NANOSECONDS.toMillis(timer.maxNanos.get()));
+        });
+        counters.forEach((counter, n) -> summary.put(counter, n.sum()));
+        summary.put("readQueue.maxSize", maxReadQueueSize.get());
+        summary.put("batchQueue.maxSize", maxBatchQueueSize.get());
+        summary.put("itemPool.size", (long) getItemPoolSize());
+        return summary;
+    }
+
+}
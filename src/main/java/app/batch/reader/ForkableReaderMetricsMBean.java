@@ -0,0 +1,24 @@
+package app.batch.reader;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ForkableReaderMetrics}.
+ */
+public interface ForkableReaderMetricsMBean {
+
+    int getReadQueueSize();
+
+    int getMaxReadQueueSize();
+
+    int getBatchQueueSize();
+
+    int getMaxBatchQueueSize();
+
+    int getItemPoolSize();
+
+    long getMergeCount();
+
+    Map<String, Long> getSummary();
+
+}
@@ -0,0 +1,168 @@
+package app.batch.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Item store of {@link ForkableItemStreamReader} which keeps at most {@code maxHeapItems} items
+ * on the heap and spills the least recently used items to an H2 {@link MVStore} file. Spilled
+ * items are reloaded on access. Items are referenced by the handle returned when adding them, and
+ * must be serializable.
+ * <p>
+ * Items are spread over stripes by handle, each with its own share of the budget and its own lock.
+ * An item is only changed through {@link #update(long, Consumer)} under the lock of its stripe, so
+ * there is only one instance of an item at a time.
+ */
+public class ForkableSpillStore<T> implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForkableSpillStore.class);
+
+    private static final int STRIPE_COUNT = 16;
+
+    private final File file;
+
+    private final MVStore store;
+
+    private final MVMap<Long, T> spilled;
+
+    private final List<Stripe<T>> stripes;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong spillCount = new AtomicLong();
+
+    private static final class Stripe<T> {
+
+        private final Map<Long, T> items;
+
+        private Stripe(final int maxItems, final MVMap<Long, T> spilled, final AtomicLong spillCount) {
+            // access ordered, so the eldest entry is the least recently used
+            this.items = new LinkedHashMap<Long, T>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Long, T> eldest) {
+                    if (size() > maxItems) {
+                        spilled.put(eldest.getKey(), eldest.getValue());
+                        spillCount.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * Creates a store spilling to the given file, or to a temporary file which is deleted when
+     * the store is closed.
+     * @param fileName the file name, or {@code null} for a temporary file
+     * @param maxHeapItems the maximum number of items on the heap
+     */
+    public ForkableSpillStore(final String fileName, final int maxHeapItems) {
+        if (maxHeapItems < STRIPE_COUNT) {
+            throw new IllegalArgumentException("Maximum number of heap items should be at least " + STRIPE_COUNT + ".");
+        }
+        try {
+            file = fileName == null ? File.createTempFile("forkable-", ".mv.db") : new File(fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // spilled items are written in the background and only a small page cache is kept
+        store = new MVStore.Builder().fileName(file.getPath()).cacheSize(4).open();
+        spilled = store.openMap("items");
+        spilled.clear();
+        stripes = new ArrayList<>(STRIPE_COUNT);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes.add(new Stripe<>(maxHeapItems / STRIPE_COUNT, spilled, spillCount));
+        }
+    }
+
+    /**
+     * Adds an item.
+     * @param item the item
+     * @return the handle of the item
+     */
+    public long add(final T item) {
+        final long handle = sequence.incrementAndGet();
+        final Stripe<T> stripe = stripe(handle);
+        synchronized (stripe) {
+            stripe.items.put(handle, item);
+        }
+        return handle;
+    }
+
+    /**
+     * Applies an action to an item, reloading the item if it has been spilled.
+     * @param handle the handle of the item
+     * @param action the action
+     */
+    public void update(final long handle, final Consumer<T> action) {
+        final Stripe<T> stripe = stripe(handle);
+        synchronized (stripe) {
+            final T item = load(stripe, handle);
+            if (item != null) {
+                action.accept(item);
+            }
+        }
+    }
+
+    public T get(final long handle) {
+        final Stripe<T> stripe = stripe(handle);
+        synchronized (stripe) {
+            return load(stripe, handle);
+        }
+    }
+
+    public void remove(final long handle) {
+        final Stripe<T> stripe = stripe(handle);
+        synchronized (stripe) {
+            if (stripe.items.remove(handle) == null) {
+                spilled.remove(handle);
+            }
+        }
+    }
+
+    public long getSpillCount() {
+        return spillCount.get();
+    }
+
+    private T load(final Stripe<T> stripe, final long handle) {
+        T item = stripe.items.get(handle);
+        if (item == null) {
+            item = spilled.remove(handle);
+            if (item != null) {
+                stripe.items.put(handle, item);
+            }
+        }
+        return item;
+    }
+
+    private Stripe<T> stripe(final long handle) {
+        return stripes.get((int) (handle & (STRIPE_COUNT - 1)));
+    }
+
+    @Override
+    public void close() {
+        for (Stripe<T> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.items.clear();
+            }
+        }
+        store.closeImmediately();
+        if (!file.delete() && file.exists()) {
+            LOGGER.warn("Failed to delete spill file {}", file);
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package app.batch.reader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the batch size and the number of concurrent batches of a root
+ * {@link ForkableItemStreamReader} from the batches completed in a window of {@code windowSize}
+ * batches:
+ * <ul>
+ * <li>the batch size is climbed towards the highest throughput of delegate items: it keeps growing
+ * or shrinking by a quarter while the throughput improves, and changes direction otherwise</li>
+ * <li>the concurrency is decreased if the read queue is mostly full, i.e. batches are processed
+ * faster than read, or if the old generation usage after the last garbage collection exceeds
+ * {@code heapThreshold}; it is decreased by a
+ * quarter if the latency per item more than doubles from the lowest latency observed, i.e. the
+ * slave readers are saturated; otherwise it is increased if the read queue is mostly empty</li>
+ * </ul>
+ * Both values are kept within the configured bounds, and their product within
+ * {@code maxInFlightItems}. The tuned values are saved in the execution context of the reader, so
+ * they can be configured as fixed values.
+ */
+public class ForkableTuner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForkableTuner.class);
+
+    private int minBatchSize = 10;
+
+    private int maxBatchSize = 5000;
+
+    private int minConcurrency = 1;
+
+    private int maxConcurrency = 64;
+
+    private int maxInFlightItems = 100000;
+
+    private int windowSize = 8;
+
+    private double heapThreshold = 0.8;
+
+    // tuned values
+
+    private volatile int batchSize;
+
+    private volatile int concurrency;
+
+    // window state
+
+    private int direction = 1;
+
+    private double lastThroughput;
+
+    private double minItemLatency = Double.MAX_VALUE;
+
+    private long windowStart;
+
+    private int windowBatches;
+
+    private long windowItems;
+
+    private long windowLatencyNanos;
+
+    private double windowOccupancy;
+
+    /**
+     * Starts tuning from the given values.
+     * @param batchSize the initial batch size
+     * @param concurrency the initial number of concurrent batches
+     */
+    public synchronized void init(final int batchSize, final int concurrency) {
+        if (minBatchSize < 1 || minBatchSize > maxBatchSize || minConcurrency < 1 || minConcurrency > maxConcurrency) {
+            throw new IllegalStateException("Invalid bounds of batch size or concurrency.");
+        }
+        this.batchSize = clamp(batchSize, minBatchSize, maxBatchSize);
+        this.concurrency = limitConcurrency(clamp(concurrency, minConcurrency, maxConcurrency));
+        direction = 1;
+        lastThroughput = 0;
+        minItemLatency = Double.MAX_VALUE;
+        resetWindow();
+    }
+
+    /**
+     * Records a completed batch, and tunes the values at the end of a window.
+     * @param items the number of delegate items of the batch
+     * @param latencyNanos the time from submitting to completing the batch
+     * @param readQueueSize the size of the read queue
+     * @param readQueueCapacity the capacity of the read queue
+     */
+    public synchronized void onBatchComplete(final int items, final long latencyNanos,
+                                             final int readQueueSize, final int readQueueCapacity) {
+        windowBatches++;
+        windowItems += items;
+        windowLatencyNanos += latencyNanos;
+        windowOccupancy += (double) readQueueSize / readQueueCapacity;
+        if (windowBatches >= windowSize && windowItems > 0) {
+            tune();
+            resetWindow();
+        }
+    }
+
+    private void tune() {
+        final long elapsed = Math.max(1, System.nanoTime() - windowStart);
+        final double throughput = windowItems * 1e9 / elapsed;
+        final double itemLatency = (double) windowLatencyNanos / windowItems;
+        final double occupancy = windowOccupancy / windowBatches;
+        minItemLatency = Math.min(minItemLatency, itemLatency);
+
+        if (throughput < lastThroughput) {
+            direction = -direction;
+        }
+        lastThroughput = throughput;
+        final int newBatchSize = clamp(direction > 0 ? batchSize + batchSize / 4 + 1 : batchSize - batchSize / 4,
+            minBatchSize, maxBatchSize);
+
+        int newConcurrency = concurrency;
+        if (occupancy > 0.75 || getHeapUsage() > heapThreshold) {
+            newConcurrency--;
+        } else if (itemLatency > 2 * minItemLatency) {
+            newConcurrency -= Math.max(1, newConcurrency / 4);
+        } else if (occupancy < 0.25) {
+            newConcurrency++;
+        }
+        batchSize = newBatchSize;
+        newConcurrency = limitConcurrency(clamp(newConcurrency, minConcurrency, maxConcurrency));
+
+        concurrency = newConcurrency;
+        LOGGER.info("Tuned batch size = {}, concurrency = {} (throughput = {}/s, latency = {}us/item, queue occupancy = {})",
+            newBatchSize, newConcurrency, (long) throughput, (long) (itemLatency / 1000), String.format("%.2f", occupancy));
+    }
+
+    private int limitConcurrency(final int c) {
+        return Math.max(minConcurrency, Math.min(c, maxInFlightItems / batchSize));
+    }
+
+    private void resetWindow() {
+        windowStart = System.nanoTime();
+        windowBatches = 0;
+        windowItems = 0;
+        windowLatencyNanos = 0;
+        windowOccupancy = 0;
+    }
+
+    /**
+     * Returns the highest usage after the last collection of the heap pools supporting a usage
+     * threshold, i.e. the old generation, so garbage not collected yet is not counted.
+     */
+    private static double getHeapUsage() {
+        double usage = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage u = pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                ? pool.getCollectionUsage() : null;
+            if (u != null) {
+                final long max = u.getMax() > 0 ? u.getMax() : u.getCommitted();
+                if (max > 0) {
+                    usage = Math.max(usage, (double) u.getUsed() / max);
+                }
+            }
+        }
+        return usage;
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setMinBatchSize(final int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+    }
+
+    public void setMaxBatchSize(final int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setMinConcurrency(final int minConcurrency) {
+        this.minConcurrency = minConcurrency;
+    }
+
+    public void setMaxConcurrency(final int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public void setMaxInFlightItems(final int maxInFlightItems) {
+        this.maxInFlightItems = maxInFlightItems;
+    }
+
+    public void setWindowSize(final int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public void setHeapThreshold(final double heapThreshold) {
+        this.heapThreshold = heapThreshold;
+    }
+
+}
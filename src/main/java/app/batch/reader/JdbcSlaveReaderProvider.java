@@ -0,0 +1,225 @@
+package app.batch.reader;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemStreamReader;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.RowMapperResultSetExtractor;
+
+/**
+ * Slave reader provider which reads the items matching the keys of a batch with a query such as
+ * {@code select ... from position where account_id in ({keys})}. The keys are the distinct keys
+ * of the batch items by the key function of the provider, and the rows are mapped into items with
+ * the same key, which are merged into the batch items by the merge function.
+ * <p>
+ * Keys are bound in slices of {@code sliceSize} parameters, one query per slice. Batches with more
+ * keys than {@code tempTableThreshold} are inserted into a local temporary table in one JDBC batch
+ * instead, and {@code {keys}} is replaced by a sub-query of the table, so the items are read with a
+ * single query.
+ */
+public class JdbcSlaveReaderProvider<T> extends ForkableItemStreamReader.Provider<T> {
+
+    public static final String KEYS = "{keys}";
+
+    private DataSource dataSource;
+
+    private String sql;
+
+    private RowMapper<T> rowMapper;
+
+    private int sliceSize = 500;
+
+    private int tempTableThreshold = Integer.MAX_VALUE;
+
+    private String tempTable = "fork_keys";
+
+    private String keyType = "bigint";
+
+    private Collection<ForkableItemStreamReader.Provider<T>> slaveReaderProviders;
+
+    private volatile JdbcTemplate jdbcTemplate;
+
+    public JdbcSlaveReaderProvider() {
+        super(null, null, null, false);
+        setProvider(this::createReader);
+    }
+
+    private ForkableItemStreamReader<T> createReader(final Collection<T> items) {
+        final ForkableItemStreamReader<T> reader = new ForkableItemStreamReader<>(new KeyQueryReader(getKeys(items)));
+        reader.setSlaveReaderProviders(slaveReaderProviders);
+        return reader;
+    }
+
+    private List<Object> getKeys(final Collection<T> items) {
+        final Set<Object> keys = new LinkedHashSet<>();
+        items.forEach(o -> {
+            final Object key = getKeyFunction().apply(o);
+            if (key != null) {
+                keys.add(key);
+            }
+        });
+        return new ArrayList<>(keys);
+    }
+
+    private JdbcTemplate getJdbcTemplate() {
+        if (jdbcTemplate == null) {
+            if (dataSource == null || sql == null || rowMapper == null) {
+                throw new IllegalStateException("Data source, SQL and row mapper should be provided.");
+            }
+            if (!sql.contains(KEYS)) {
+                throw new IllegalStateException("SQL should contain " + KEYS + ".");
+            }
+            jdbcTemplate = new JdbcTemplate(dataSource);
+        }
+        return jdbcTemplate;
+    }
+
+    private List<T> queryInList(final List<Object> keys) {
+        final String s = sql.replace(KEYS, String.join(", ", Collections.nCopies(keys.size(), "?")));
+        return getJdbcTemplate().query(s, keys.toArray(), rowMapper);
+    }
+
+    private List<T> queryTempTable(final List<Object> keys) {
+        final String s = sql.replace(KEYS, "select k from " + tempTable);
+        // the temporary table is only visible to the connection of the callback
+        return getJdbcTemplate().execute((ConnectionCallback<List<T>>) con -> {
+            try (Statement st = con.createStatement()) {
+                st.execute("create local temporary table if not exists " + tempTable + " (k " + keyType + ")");
+                st.execute("delete from " + tempTable);
+            }
+            try (PreparedStatement ps = con.prepareStatement("insert into " + tempTable + " (k) values (?)")) {
+                for (Object key : keys) {
+                    ps.setObject(1, key);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            try (PreparedStatement ps = con.prepareStatement(s)) {
+                return new RowMapperResultSetExtractor<>(rowMapper).extractData(ps.executeQuery());
+            } finally {
+                try (Statement st = con.createStatement()) {
+                    st.execute("delete from " + tempTable);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the items of the keys one slice at a time.
+     */
+    private class KeyQueryReader implements ItemStreamReader<T> {
+
+        private final List<Object> keys;
+
+        private int offset;
+
+        private Iterator<T> rows = Collections.emptyIterator();
+
+        private KeyQueryReader(final List<Object> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public void open(final ExecutionContext executionContext) throws ItemStreamException {
+            offset = 0;
+            rows = Collections.emptyIterator();
+            if (keys.size() > tempTableThreshold) {
+                rows = queryTempTable(keys).iterator();
+                offset = keys.size();
+            }
+        }
+
+        @Override
+        public T read() {
+            while (!rows.hasNext() && offset < keys.size()) {
+                final int end = Math.min(offset + sliceSize, keys.size());
+                rows = queryInList(keys.subList(offset, end)).iterator();
+                offset = end;
+            }
+            return rows.hasNext() ? rows.next() : null;
+        }
+
+        @Override
+        public void update(final ExecutionContext executionContext) throws ItemStreamException {
+
+        }
+
+        @Override
+        public void close() throws ItemStreamException {
+            rows = Collections.emptyIterator();
+        }
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public void setDataSource(final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public void setSql(final String sql) {
+        this.sql = sql;
+    }
+
+    public RowMapper<T> getRowMapper() {
+        return rowMapper;
+    }
+
+    public void setRowMapper(final RowMapper<T> rowMapper) {
+        this.rowMapper = rowMapper;
+    }
+
+    public int getSliceSize() {
+        return sliceSize;
+    }
+
+    public void setSliceSize(final int sliceSize) {
+        this.sliceSize = sliceSize;
+    }
+
+    public int getTempTableThreshold() {
+        return tempTableThreshold;
+    }
+
+    public void setTempTableThreshold(final int tempTableThreshold) {
+        this.tempTableThreshold = tempTableThreshold;
+    }
+
+    public String getTempTable() {
+        return tempTable;
+    }
+
+    public void setTempTable(final String tempTable) {
+        this.tempTable = tempTable;
+    }
+
+    public String getKeyType() {
+        return keyType;
+    }
+
+    public void setKeyType(final String keyType) {
+        this.keyType = keyType;
+    }
+
+    public void setSlaveReaderProviders(final Collection<ForkableItemStreamReader.Provider<T>> slaveReaderProviders) {
+        this.slaveReaderProviders = slaveReaderProviders;
+    }
+
+}
@@ -0,0 +1,198 @@
+package app.batch.reader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemStreamReader;
+
+/**
+ * Reader joining the items of the delegate with the items of sorted slave readers. The delegate
+ * and each slave reader must be sorted by the join key of the slave, so the slave reader is
+ * advanced in lockstep with the delegate, and only the slave items of the current key are kept in
+ * memory. Slave items of a key are merged into every delegate item of the key. With inner join,
+ * delegate items without slave items are skipped.
+ * <p>
+ * Slave readers do not save state; on restart they are read again from the start and skip the keys
+ * before the first delegate item.
+ */
+public class SortMergeJoinItemStreamReader<T> implements ItemStreamReader<T> {
+
+    private ItemStreamReader<T> delegate;
+
+    private List<SortedSlave<T, ?>> slaves = new ArrayList<>();
+
+    /**
+     * Slave reader sorted by the join key.
+     * @param <T> the type of the items
+     * @param <K> the type of the join key
+     */
+    public static class SortedSlave<T, K extends Comparable<? super K>> {
+
+        private ItemStreamReader<T> reader;
+
+        private Function<T, ? extends K> keyFunction;
+
+        private BiFunction<T, T, T> mergeFunction;
+
+        private boolean useInnerJoin;
+
+        // current slave item and the items of the last joined key
+        private T next;
+
+        private K nextKey;
+
+        private K groupKey;
+
+        private K lastKey;
+
+        private final List<T> group = new ArrayList<>();
+
+        public SortedSlave(final ItemStreamReader<T> reader,
+                           final Function<T, ? extends K> keyFunction,
+                           final BiFunction<T, T, T> mergeFunction,
+                           final boolean useInnerJoin) {
+            this.reader = reader;
+            this.keyFunction = keyFunction;
+            this.mergeFunction = mergeFunction;
+            this.useInnerJoin = useInnerJoin;
+        }
+
+        private void open(final ExecutionContext executionContext) throws Exception {
+            Objects.requireNonNull(reader, "Slave reader is not provided.");
+            Objects.requireNonNull(keyFunction, "Key function is not provided.");
+            Objects.requireNonNull(mergeFunction, "Merge function is not provided.");
+            reader.open(executionContext);
+            nextKey = null;
+            groupKey = null;
+            lastKey = null;
+            group.clear();
+            advance();
+        }
+
+        private void advance() throws Exception {
+            final K previousKey = nextKey;
+            do {
+                next = reader.read();
+                nextKey = next == null ? null : keyFunction.apply(next);
+            } while (next != null && nextKey == null);
+            if (nextKey != null && previousKey != null && nextKey.compareTo(previousKey) < 0) {
+                throw new IllegalStateException("Slave items are not sorted: " + nextKey + " after " + previousKey + ".");
+            }
+        }
+
+        /**
+         * Merges the slave items of the key of a delegate item.
+         * @return {@code true} if the item has slave items
+         */
+        private boolean join(final T item) throws Exception {
+            final K key = keyFunction.apply(item);
+            if (key == null) {
+                return false;
+            }
+            if (lastKey != null && key.compareTo(lastKey) < 0) {
+                throw new IllegalStateException("Items are not sorted: " + key + " after " + lastKey + ".");
+            }
+            lastKey = key;
+            if (groupKey == null || key.compareTo(groupKey) != 0) {
+                group.clear();
+                groupKey = key;
+                while (next != null && nextKey.compareTo(key) < 0) {
+                    advance();
+                }
+                while (next != null && nextKey.compareTo(key) == 0) {
+                    group.add(next);
+                    advance();
+                }
+            }
+            group.forEach(o -> mergeFunction.apply(item, o));
+            return !group.isEmpty();
+        }
+
+        private void close() {
+            group.clear();
+            next = null;
+            reader.close();
+        }
+
+        public boolean isUseInnerJoin() {
+            return useInnerJoin;
+        }
+
+    }
+
+    public SortMergeJoinItemStreamReader() {
+
+    }
+
+    public SortMergeJoinItemStreamReader(final ItemStreamReader<T> delegate, final Collection<SortedSlave<T, ?>> slaves) {
+        this.delegate = delegate;
+        this.slaves = new ArrayList<>(slaves);
+    }
+
+    @Override
+    public void open(final ExecutionContext executionContext) throws ItemStreamException {
+        Objects.requireNonNull(delegate, "Delegate item reader is not provided.");
+        delegate.open(executionContext);
+        try {
+            for (SortedSlave<T, ?> slave : slaves) {
+                slave.open(executionContext);
+            }
+        } catch (Exception e) {
+            throw new ItemStreamException("Failed to open slave reader.", e);
+        }
+    }
+
+    @Override
+    public T read() throws Exception {
+        T o;
+        boolean matched;
+        do {
+            o = delegate.read();
+            matched = true;
+            if (o != null) {
+                for (SortedSlave<T, ?> slave : slaves) {
+                    // all slaves are advanced, even if the item is skipped by an inner join
+                    matched &= slave.join(o) || !slave.useInnerJoin;
+                }
+            }
+        } while (o != null && !matched);
+        return o;
+    }
+
+    @Override
+    public void update(final ExecutionContext executionContext) throws ItemStreamException {
+        delegate.update(executionContext);
+    }
+
+    @Override
+    public void close() throws ItemStreamException {
+        slaves.forEach(SortedSlave::close);
+        delegate.close();
+    }
+
+    public ItemStreamReader<T> getDelegate() {
+        return delegate;
+    }
+
+    public void setDelegate(final ItemStreamReader<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    public List<SortedSlave<T, ?>> getSlaves() {
+        return slaves;
+    }
+
+    public void setSlaves(final List<SortedSlave<T, ?>> slaves) {
+        this.slaves = slaves;
+    }
+
+    public void addSlave(final SortedSlave<T, ?> slave) {
+        slaves.add(slave);
+    }
+
+}
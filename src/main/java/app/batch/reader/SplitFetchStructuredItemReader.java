@@ -0,0 +1,150 @@
+package app.batch.reader;
+
+import java.util.ArrayList;
+import java.util.List;
+import app.batch.mapper.StructuredChildRowMapper;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+/**
+ * Structured item reader which fetches each child collection with its own query instead of
+ * joining all of them to the root query. The root query and every child query must be ordered
+ * by the parent key, so the child rows can be merged into the root items in a single pass. The
+ * number of rows transferred grows linearly with the number of children, while a join of two
+ * child collections produces the cartesian product of both for every root item.
+ */
+public class SplitFetchStructuredItemReader<T> extends StructuredItemReader<T> {
+
+    private List<ChildQuery<T>> childQueries = new ArrayList<>();
+
+    private SqlRowSet[] childRowSets;
+
+    private boolean[] childHasNext;
+
+    public static class ChildQuery<T> {
+
+        private String sql;
+
+        private String keyColumn;
+
+        private StructuredChildRowMapper<T, ?> rowMapper;
+
+        public ChildQuery() {
+
+        }
+
+        public ChildQuery(final String sql, final String keyColumn, final StructuredChildRowMapper<T, ?> rowMapper) {
+            this.sql = sql;
+            this.keyColumn = keyColumn;
+            this.rowMapper = rowMapper;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public void setSql(final String sql) {
+            this.sql = sql;
+        }
+
+        public String getKeyColumn() {
+            return keyColumn;
+        }
+
+        public void setKeyColumn(final String keyColumn) {
+            this.keyColumn = keyColumn;
+        }
+
+        public StructuredChildRowMapper<T, ?> getRowMapper() {
+            return rowMapper;
+        }
+
+        public void setRowMapper(final StructuredChildRowMapper<T, ?> rowMapper) {
+            this.rowMapper = rowMapper;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        for (ChildQuery<T> childQuery : childQueries) {
+            if (childQuery.getSql() == null) {
+                throw new IllegalStateException("Child SQL is not defined.");
+            }
+            if (childQuery.getRowMapper() == null) {
+                throw new IllegalStateException("Child row mapper is not defined.");
+            }
+            if (getKeyColumn() != null && (childQuery.getKeyColumn() == null || !childQuery.getSql().contains(KEY_CONDITION))) {
+                throw new IllegalStateException("Child SQL does not define a key condition.");
+            }
+        }
+    }
+
+    @Override
+    protected T doRead() throws Exception {
+        final T item = super.doRead();
+        if (item != null) {
+            for (int i = 0; i < childRowSets.length; i++) {
+                mergeChildRows(i, item);
+            }
+        }
+        return item;
+    }
+
+    @Override
+    protected void doOpen() throws Exception {
+        super.doOpen();
+        childRowSets = new SqlRowSet[childQueries.size()];
+        childHasNext = new boolean[childQueries.size()];
+        for (int i = 0; i < childRowSets.length; i++) {
+            final ChildQuery<T> childQuery = childQueries.get(i);
+            childRowSets[i] = query(childQuery.getSql(), childQuery.getKeyColumn());
+            childHasNext[i] = childRowSets[i].next();
+        }
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        super.doClose();
+        if (childRowSets != null) {
+            for (int i = 0; i < childRowSets.length; i++) {
+                if (childRowSets[i] != null) {
+                    childQueries.get(i).getRowMapper().release(childRowSets[i]);
+                }
+            }
+        }
+        childRowSets = null;
+        childHasNext = null;
+    }
+
+    /**
+     * Advances the child row set up to the rows of the next parent and merges the rows that
+     * belong to the item. Rows without a matching parent are skipped.
+     * @param i the index of the child query
+     * @param item the parent item
+     */
+    private void mergeChildRows(final int i, final T item) {
+        final StructuredChildRowMapper<T, ?> mapper = childQueries.get(i).getRowMapper();
+        final SqlRowSet rs = childRowSets[i];
+        final int recordIndex = getCurrentItemCount();
+        int c;
+        while (childHasNext[i] && (c = mapper.compareParentKey(item, rs)) >= 0) {
+            if (c == 0) {
+                mapper.updateItem(item, rs, recordIndex);
+            }
+            childHasNext[i] = rs.next();
+        }
+    }
+
+    public List<ChildQuery<T>> getChildQueries() {
+        return childQueries;
+    }
+
+    public void setChildQueries(final List<ChildQuery<T>> childQueries) {
+        this.childQueries = childQueries;
+    }
+
+    public void addChildQuery(final ChildQuery<T> childQuery) {
+        childQueries.add(childQuery);
+    }
+
+}
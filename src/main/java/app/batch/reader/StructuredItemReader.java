@@ -1,20 +1,52 @@
 package app.batch.reader;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import app.batch.mapper.StructuredItemRowMapper;
+import app.batch.partitioner.KeyRangePartitioner;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.support.AbstractItemCountingItemStreamItemReader;
 import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.rowset.ResultSetWrappingSqlRowSet;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 
 /**
  * Item reader implementation for objects with nested structure.
+ * <p>
+ * By default the whole result set is loaded into a cached row set on open. In streaming mode
+ * the query is executed with a forward-only cursor instead, so only the rows of the current item
+ * are held in memory and items are emitted while the result set is still being fetched.
+ * <p>
+ * If the SQL contains the {@value #KEY_CONDITION} placeholder and a key column is set, the reader
+ * restricts the query to the key range provided by {@link KeyRangePartitioner} in the step
+ * execution context. Without a key range the placeholder is replaced by an always true condition.
+ * <p>
+ * The same placeholder is used for restart. The key of the last item read is saved in the
+ * execution context, and a restarted reader resumes with a {@code keyColumn > lastKey} condition
+ * instead of reading and discarding all items up to the saved item count. This requires the
+ * query to be ordered by the key column and the row mapper to provide the key of an item.
  */
 public class StructuredItemReader<T> extends AbstractItemCountingItemStreamItemReader<T>
         implements InitializingBean, BeanNameAware {
 
+    public static final String KEY_CONDITION = "{keyCondition}";
+
+    private static final String LAST_KEY = "last.key";
+
     private StructuredItemRowMapper<T> rowMapper;
 
     private DataSource dataSource;
@@ -27,6 +59,22 @@ public class StructuredItemReader<T> extends AbstractItemCountingItemStreamItemR
 
     private Object[] parameters;
 
+    private boolean streaming;
+
+    private int fetchSize = 1000;   // default fetch size in streaming mode
+
+    private Connection connection;
+
+    private final List<PreparedStatement> statements = new ArrayList<>();
+
+    private String keyColumn;
+
+    private ExecutionContext executionContext;
+
+    private Object restartKey;
+
+    private Object lastKey;
+
     private boolean hasNext;
 
     private boolean doRead;
@@ -49,11 +97,40 @@ public class StructuredItemReader<T> extends AbstractItemCountingItemStreamItemR
         if (rowMapper == null) {
             throw new IllegalStateException("Row mapper is not defined.");
         }
+        if (keyColumn != null && !sql.contains(KEY_CONDITION)) {
+            throw new IllegalStateException("SQL does not contain " + KEY_CONDITION + " for key column " + keyColumn + ".");
+        }
         if (jdbcTemplate == null) {
             jdbcTemplate = new JdbcTemplate(dataSource);
         }
     }
 
+    @Override
+    public void open(final ExecutionContext executionContext) throws ItemStreamException {
+        this.executionContext = executionContext;
+        final String lastKeyName = getExecutionContextKey(LAST_KEY);
+        restartKey = keyColumn != null && isSaveState() && executionContext.containsKey(lastKeyName) ?
+            executionContext.get(lastKeyName) : null;
+        lastKey = restartKey;
+        super.open(executionContext);
+    }
+
+    @Override
+    public void update(final ExecutionContext executionContext) throws ItemStreamException {
+        super.update(executionContext);
+        if (isSaveState() && lastKey != null) {
+            executionContext.put(getExecutionContextKey(LAST_KEY), lastKey);
+        }
+    }
+
+    @Override
+    protected void jumpToItem(final int itemIndex) throws Exception {
+        if (restartKey == null) {
+            // no key to resume from, skip items one by one
+            super.jumpToItem(itemIndex);
+        }
+    }
+
     @Override
     protected T doRead() throws Exception {
         final int recordIndex = getCurrentItemCount();
@@ -72,21 +149,107 @@ public class StructuredItemReader<T> extends AbstractItemCountingItemStreamItemR
         if (curItem != null) {
             curItem = null;
             doRead = hasNext;
+            if (keyColumn != null) {
+                lastKey = rowMapper.getKey(item);
+            }
         }
         return item;
     }
 
     @Override
-    protected void doOpen() throws SQLException {
-        sqlRowSet = parameters == null ?
-            jdbcTemplate.queryForRowSet(sql) :
-            jdbcTemplate.queryForRowSet(sql, parameters);
+    protected void doOpen() throws Exception {
+        sqlRowSet = query(sql, keyColumn);
         doRead = hasNext = sqlRowSet.next();
     }
 
     @Override
     protected void doClose() throws Exception {
+        statements.forEach(JdbcUtils::closeStatement);
+        statements.clear();
+        DataSourceUtils.releaseConnection(connection, dataSource);
+        connection = null;
+        if (sqlRowSet != null) {
+            rowMapper.release(sqlRowSet);
+        }
         sqlRowSet = null;
+        curItem = null;
+        restartKey = null;
+        lastKey = null;
+    }
+
+    /**
+     * Executes a query after substituting the key condition placeholder. In streaming mode the
+     * returned row set is backed by an open cursor which is closed when the reader is closed.
+     * @param sql the SQL to execute
+     * @param keyColumn the key column the key condition applies to
+     * @return the row set
+     * @throws SQLException if the query cannot be executed
+     */
+    protected SqlRowSet query(final String sql, final String keyColumn) throws SQLException {
+        final Pair<String, Object[]> query = prepareQuery(sql, keyColumn);
+        final SqlRowSet rs;
+        if (streaming) {
+            rs = openCursor(query.getLeft(), query.getRight());
+        } else {
+            rs = query.getRight() == null ?
+                jdbcTemplate.queryForRowSet(query.getLeft()) :
+                jdbcTemplate.queryForRowSet(query.getLeft(), query.getRight());
+        }
+        return rs;
+    }
+
+    /**
+     * Resolves the SQL and parameters to execute by substituting the key condition placeholder.
+     * Key parameters are inserted after the parameters that precede the placeholder.
+     */
+    private Pair<String, Object[]> prepareQuery(final String sql, final String keyColumn) {
+        final int idx = sql.indexOf(KEY_CONDITION);
+        if (idx < 0) {
+            return Pair.of(sql, parameters);
+        }
+        final List<String> conditions = new ArrayList<>();
+        final List<Object> keyParameters = new ArrayList<>();
+        if (keyColumn != null && executionContext != null
+                && executionContext.containsKey(KeyRangePartitioner.MIN_VALUE)
+                && executionContext.containsKey(KeyRangePartitioner.MAX_VALUE)) {
+            conditions.add(keyColumn + " >= ?");
+            keyParameters.add(executionContext.get(KeyRangePartitioner.MIN_VALUE));
+            conditions.add(keyColumn + " <= ?");
+            keyParameters.add(executionContext.get(KeyRangePartitioner.MAX_VALUE));
+        }
+        if (keyColumn != null && restartKey != null) {
+            conditions.add(keyColumn + " > ?");
+            keyParameters.add(restartKey);
+        }
+        final String prefix = sql.substring(0, idx);
+        final String querySql = prefix + (conditions.isEmpty() ? "1 = 1" : String.join(" and ", conditions))
+            + sql.substring(idx + KEY_CONDITION.length());
+        final List<Object> l = parameters == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(parameters));
+        l.addAll(StringUtils.countMatches(prefix, '?'), keyParameters);
+        return Pair.of(querySql, l.isEmpty() ? null : l.toArray());
+    }
+
+    /**
+     * Executes the query with a forward-only, read-only cursor and wraps the live result set so
+     * that it can be consumed by the row mapper. The connection participates in the current
+     * transaction if there is one, the same as {@link JdbcTemplate}.
+     * @param sql the SQL to execute
+     * @param parameters the query parameters
+     * @return the row set backed by the open cursor
+     * @throws SQLException if the query cannot be executed
+     */
+    private SqlRowSet openCursor(final String sql, final Object[] parameters) throws SQLException {
+        if (connection == null) {
+            connection = DataSourceUtils.getConnection(dataSource);
+        }
+        final PreparedStatement ps = connection.prepareStatement(sql,
+            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statements.add(ps);
+        ps.setFetchSize(fetchSize);
+        if (parameters != null) {
+            new ArgumentPreparedStatementSetter(parameters).setValues(ps);
+        }
+        return new ResultSetWrappingSqlRowSet(ps.executeQuery());
     }
 
     public StructuredItemRowMapper<T> getRowMapper() {
@@ -121,4 +284,28 @@ public class StructuredItemReader<T> extends AbstractItemCountingItemStreamItemR
         this.parameters = parameters;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(final boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public String getKeyColumn() {
+        return keyColumn;
+    }
+
+    public void setKeyColumn(final String keyColumn) {
+        this.keyColumn = keyColumn;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(final int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
 }
@@ -1,9 +1,21 @@
 package app.batch.reader;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
 import org.springframework.batch.item.ExecutionContext;
@@ -12,22 +24,71 @@ import org.springframework.batch.item.ItemStreamReader;
 import org.springframework.batch.item.NonTransientResourceException;
 import org.springframework.batch.item.ParseException;
 import org.springframework.batch.item.UnexpectedInputException;
+import org.springframework.util.ClassUtils;
 
 /**
  * Created by Liu on 9/28/2017.
+ * <p>
+ * In async mode the wrapped reader is read ahead by a background thread in micro-batches of
+ * {@code batchSize} items, which are mapped and filtered on a pool of {@code concurrency} workers.
+ * At most {@code bufferSize} micro-batches are read ahead, and their items are read in the order
+ * of the wrapped reader. The state of the wrapped reader is not saved in async mode, as it is ahead
+ * of the items read. Instead the number of items of the wrapped reader whose transformed items
+ * have all been read is saved, and skipped on restart. A failure of the wrapped reader or of the
+ * mapper is thrown by every later read.
  */
 public class TransformableReader<T> implements ItemStreamReader<T> {
 
+    private static final String READ_COUNT = "read.count";
+
     private final ItemStreamReader<T> reader;
 
+    private String name = ClassUtils.getShortName(TransformableReader.class);
+
     private BiFunction<T, ExecutionContext, Collection<T>> mapper;
 
     private BiPredicate<T, ExecutionContext> filter;
 
+    private boolean async;
+
+    private int batchSize = 100;
+
+    private int concurrency = 4;
+
+    private int bufferSize = 8;
+
+    private ExecutorService executor;
+
     private ExecutionContext executionContext;
 
     private Queue<T> itemQueue;
 
+    // internal state variables of async mode
+
+    // transformed items of each item of the wrapped reader, or null after the last batch
+    private BlockingQueue<CompletableFuture<List<Collection<T>>>> batchQueue;
+
+    private Iterator<Collection<T>> batchItr;
+
+    private Iterator<T> itemItr;
+
+    // number of items of the wrapped reader whose transformed items have all been read
+    private int readCount;
+
+    private int skipCount;
+
+    private Exception failure;
+
+    private boolean exhausted;
+
+    private ExecutorService readExecutor;
+
+    private ExecutorService workerExecutor;
+
+    private Future<?> readFuture;
+
+    private volatile boolean closed;
+
     public TransformableReader(final ItemStreamReader<T> reader) {
         Objects.requireNonNull(reader, "Item reader is not provided.");
         this.reader = reader;
@@ -35,16 +96,116 @@ public class TransformableReader<T> implements ItemStreamReader<T> {
 
     @Override
     public T read() throws Exception, UnexpectedInputException, ParseException, NonTransientResourceException {
-        final T item = reader.read();
-        if (item != null && (filter == null || filter.test(item, executionContext))) {
-            if (mapper == null) {
-                itemQueue.add(item);
+        if (async) {
+            return readBatch();
+        }
+        // read until an item passes the filter or the reader is exhausted
+        while (itemQueue != null && itemQueue.isEmpty()) {
+            final T item = reader.read();
+            if (item == null) {
+                return null;
+            }
+            itemQueue.addAll(transform(item));
+        }
+        return itemQueue == null ? null : itemQueue.poll();
+    }
+
+    private Collection<T> transform(final T item) {
+        // the filter applies to the mapped items
+        final Collection<T> c = mapper == null ? Collections.singletonList(item) : mapper.apply(item, executionContext);
+        if (filter == null) {
+            return c;
+        }
+        final List<T> items = new ArrayList<>(c.size());
+        c.forEach(o -> {
+            if (filter.test(o, executionContext)) {
+                items.add(o);
+            }
+        });
+        return items;
+    }
+
+    private T readBatch() throws Exception {
+        if (failure != null) {
+            throw failure;
+        }
+        while (itemItr == null || !itemItr.hasNext()) {
+            if (batchItr == null || !batchItr.hasNext()) {
+                if (exhausted) {
+                    return null;
+                }
+                final List<Collection<T>> batch;
+                try {
+                    batch = batchQueue.take().join();
+                } catch (CompletionException e) {
+                    // later batches are discarded on close
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    throw failure;
+                }
+                if (batch == null) {
+                    exhausted = true;
+                    return null;
+                }
+                batchItr = batch.iterator();
             } else {
-                final Collection<T> c = mapper.apply(item, executionContext);
-                itemQueue.addAll(c);
+                itemItr = batchItr.next().iterator();
+                if (!itemItr.hasNext()) {
+                    // all transformed items are filtered
+                    readCount++;
+                }
             }
         }
-        return itemQueue == null || itemQueue.isEmpty() ? null : itemQueue.poll();
+        final T o = itemItr.next();
+        if (!itemItr.hasNext()) {
+            readCount++;
+        }
+        return o;
+    }
+
+    private void readItems() {
+        try {
+            // items read before the restart
+            for (int i = 0; i < skipCount && !closed && reader.read() != null; i++) {
+                // skip
+            }
+            List<T> buffer = new ArrayList<>(batchSize);
+            T item;
+            while (!closed && (item = reader.read()) != null) {
+                buffer.add(item);
+                if (buffer.size() >= batchSize) {
+                    put(transformAsync(buffer));
+                    buffer = new ArrayList<>(batchSize);
+                }
+            }
+            if (!buffer.isEmpty()) {
+                put(transformAsync(buffer));
+            }
+            put(CompletableFuture.completedFuture(null));
+        } catch (Exception e) {
+            final CompletableFuture<List<Collection<T>>> f = new CompletableFuture<>();
+            f.completeExceptionally(e);
+            put(f);
+        }
+    }
+
+    private CompletableFuture<List<Collection<T>>> transformAsync(final List<T> buffer) {
+        return CompletableFuture.supplyAsync(() -> {
+            final List<Collection<T>> items = new ArrayList<>(buffer.size());
+            buffer.forEach(item -> items.add(transform(item)));
+            return items;
+        }, workerExecutor);
+    }
+
+    private void put(final CompletableFuture<List<Collection<T>>> f) {
+        try {
+            boolean offered = false;
+            // give up when the reader is closed before reading all items
+            while (!closed && !offered) {
+                offered = batchQueue.offer(f, 100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
@@ -52,18 +213,63 @@ public class TransformableReader<T> implements ItemStreamReader<T> {
         reader.open(executionContext);
         this.executionContext = executionContext;
         this.itemQueue = new LinkedList<>();
+        if (async) {
+            closed = false;
+            batchItr = null;
+            itemItr = null;
+            failure = null;
+            exhausted = false;
+            readCount = executionContext.containsKey(getExecutionContextKey(READ_COUNT))
+                ? executionContext.getInt(getExecutionContextKey(READ_COUNT)) : 0;
+            skipCount = readCount;
+            batchQueue = new ArrayBlockingQueue<>(Math.max(bufferSize, 1));
+            workerExecutor = executor == null ? Executors.newFixedThreadPool(concurrency) : executor;
+            readExecutor = Executors.newSingleThreadExecutor();
+            readFuture = readExecutor.submit(this::readItems);
+        }
     }
 
     @Override
     public void update(final ExecutionContext executionContext) throws ItemStreamException {
-        reader.update(executionContext);
+        if (async) {
+            executionContext.putInt(getExecutionContextKey(READ_COUNT), readCount);
+        } else {
+            reader.update(executionContext);
+        }
+    }
+
+    private String getExecutionContextKey(final String key) {
+        return name + "." + key;
     }
 
     @Override
     public void close() throws ItemStreamException {
+        if (readExecutor != null) {
+            closed = true;
+            batchQueue.clear();
+            try {
+                // the wrapped reader is closed after the read ahead stops
+                readFuture.get();
+            } catch (Exception e) {
+                // failures are returned by read
+            }
+            readExecutor.shutdown();
+            if (workerExecutor != executor) {
+                workerExecutor.shutdown();
+            }
+            readExecutor = null;
+            workerExecutor = null;
+            batchQueue = null;
+            batchItr = null;
+            itemItr = null;
+        }
         reader.close();
     }
 
+    public void setName(final String name) {
+        this.name = name;
+    }
+
     public void setMapper(final BiFunction<T, ExecutionContext, Collection<T>> mapper) {
         this.mapper = mapper;
     }
@@ -71,4 +277,24 @@ public class TransformableReader<T> implements ItemStreamReader<T> {
     public void setFilter(final BiPredicate<T, ExecutionContext> filter) {
         this.filter = filter;
     }
+
+    public void setAsync(final boolean async) {
+        this.async = async;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setConcurrency(final int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
 }
@@ -18,6 +18,10 @@ import java.util.Map;
 @Configuration
 public class HibernateConfiguration extends HibernateJpaAutoConfiguration {
 
+    public static final String JDBC_BATCH_SIZE = "hibernate.jdbc.batch_size";
+
+    public static final int DEFAULT_JDBC_BATCH_SIZE = 50;
+
     public HibernateConfiguration(final DataSource dataSource, final JpaProperties jpaProperties, final ObjectProvider<JtaTransactionManager> jtaTransactionManagerProvider) {
         super(dataSource, jpaProperties, jtaTransactionManagerProvider);
     }
@@ -25,6 +29,11 @@ public class HibernateConfiguration extends HibernateJpaAutoConfiguration {
     @Override
     protected void customizeVendorProperties(final Map<String, Object> vendorProperties) {
         vendorProperties.put("hibernate.ejb.interceptor", customInterceptor());
+        // inserts and updates are sent in JDBC batches per table, unless set by spring.jpa.properties
+        vendorProperties.putIfAbsent(JDBC_BATCH_SIZE, String.valueOf(DEFAULT_JDBC_BATCH_SIZE));
+        vendorProperties.putIfAbsent("hibernate.order_inserts", "true");
+        vendorProperties.putIfAbsent("hibernate.order_updates", "true");
+        vendorProperties.putIfAbsent("hibernate.jdbc.batch_versioned_data", "true");
     }
 
     @Bean
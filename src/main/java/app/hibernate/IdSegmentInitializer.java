@@ -0,0 +1,53 @@
+package app.hibernate;
+
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.enhanced.TableGenerator;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Raises the segment of each entity with a {@link TableGenerator} to at least the maximum ID of
+ * the entity table plus one on startup, so blocks allocated from a new or reset segment do not
+ * overlap the IDs of existing rows. Segments are never lowered, so blocks held by running JVMs
+ * stay valid.
+ */
+@Component
+public class IdSegmentInitializer implements InitializingBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdSegmentInitializer.class);
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void afterPropertiesSet() {
+        final SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        for (EntityPersister persister : sessionFactory.getEntityPersisters().values()) {
+            if (persister.getIdentifierGenerator() instanceof TableGenerator && persister instanceof AbstractEntityPersister) {
+                initialize((TableGenerator) persister.getIdentifierGenerator(), (AbstractEntityPersister) persister);
+            }
+        }
+    }
+
+    private void initialize(final TableGenerator generator, final AbstractEntityPersister persister) {
+        final String segmentColumn = generator.getSegmentColumnName();
+        final String valueColumn = generator.getValueColumnName();
+        final String sql = "merge into " + generator.getTableName() + " (" + segmentColumn + ", " + valueColumn
+            + ") key (" + segmentColumn + ") values (?, greatest(coalesce((select " + valueColumn + " from "
+            + generator.getTableName() + " where " + segmentColumn + " = ?), ?), (select coalesce(max("
+            + persister.getIdentifierColumnNames()[0] + "), 0) + 1 from " + persister.getTableName() + ")))";
+        jdbcTemplate.update(sql, generator.getSegmentValue(), generator.getSegmentValue(), generator.getInitialValue());
+        LOGGER.debug("Initialized ID segment {} of {}", generator.getSegmentValue(), persister.getEntityName());
+    }
+
+}
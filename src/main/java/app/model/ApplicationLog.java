@@ -1,5 +1,7 @@
 package app.model;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
@@ -17,7 +19,13 @@ public class ApplicationLog implements CrudEntity<Integer> {
 
     @Id
     @Column(name = "id", columnDefinition = "INTEGER", nullable = false)
-    @GeneratedValue
+    @GeneratedValue(generator = "application_log_id")
+    @GenericGenerator(name = "application_log_id", strategy = "enhanced-table", parameters = {
+        @Parameter(name = "table_name", value = "hibernate_sequences"),
+        @Parameter(name = "segment_value", value = "application_log"),
+        @Parameter(name = "increment_size", value = "1000"),
+        @Parameter(name = "optimizer", value = "pooled-lo")
+    })
     private Integer id;
 
     @Column(name = "ref_id", columnDefinition = "INTEGER")
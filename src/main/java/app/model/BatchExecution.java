@@ -2,6 +2,8 @@ package app.model;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
@@ -16,7 +18,13 @@ public class BatchExecution implements CrudEntity<Integer> {
 
     @Id
     @Column(name = "id", columnDefinition = "INTEGER", nullable = false)
-    @GeneratedValue
+    @GeneratedValue(generator = "batch_execution_id")
+    @GenericGenerator(name = "batch_execution_id", strategy = "enhanced-table", parameters = {
+        @Parameter(name = "table_name", value = "hibernate_sequences"),
+        @Parameter(name = "segment_value", value = "batch_execution"),
+        @Parameter(name = "increment_size", value = "1000"),
+        @Parameter(name = "optimizer", value = "pooled-lo")
+    })
     private Integer id;
 
     @Column(name = "job_name", length = 50, columnDefinition = "VARCHAR2(50)", nullable = false)
@@ -19,6 +19,11 @@ public class ApplicationLogService extends EntityService<ApplicationLog,Integer>
     @Autowired
     private JsonService jsonService;
 
+    public ApplicationLogService() {
+        // IDs are allocated in blocks, so error logs are inserted in JDBC batches
+        setBulkCreate(true);
+    }
+
     public ApplicationLog construct(Object o, Throwable e) {
         ApplicationLog log = new ApplicationLog();
         log.setType("ERROR");
@@ -3,31 +3,84 @@ package app.service;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import java.io.Serializable;
+import java.sql.PreparedStatement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import app.config.HibernateConfiguration;
 import app.exception.ApplicationException;
 import app.model.CrudEntity;
+import org.hibernate.NonUniqueObjectException;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.resource.jdbc.spi.JdbcSessionOwner;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.GenericTypeResolver;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.support.JpaEntityInformation;
+import org.springframework.data.jpa.repository.support.JpaEntityInformationSupport;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.ClassUtils;
 
 /**
  * Created by Liu on 10/15/2016.
+ * <p>
+ * In bulk create mode new entities are persisted directly and flushed every
+ * {@code hibernate.jdbc.batch_size} entities, so each flush sends one JDBC batch of inserts per
+ * table. This requires IDs which are assigned without a database round trip, such as {@code uuid2}.
+ * <p>
+ * On update the existence of the entities is checked with one {@code in} query per
+ * {@value #IN_LIST_SIZE} IDs, and detached entities are reattached to the session instead of
+ * merged, so their rows are not selected again before they are updated.
+ * <p>
+ * In upsert mode {@link #save(Iterable)} writes all entities with an H2 {@code MERGE} statement
+ * in JDBC batches, matching rows by {@code upsertKey} or by ID. Missing IDs are generated by the
+ * identifier generator of the entity. Matched rows keep their creation time and the values of
+ * columns which are not updatable. When rows are matched by other columns than the ID, matched
+ * rows also keep their ID, and the IDs of the rows are read back into the entities. See
+ * {@link MergeStatement}. The statements are passed to the statement inspector of the session,
+ * which applies the session interceptor, like the statements of Hibernate. The written entities
+ * and other instances of their rows are detached, as the persistence context does not see the
+ * merged rows.
+ * <p>
+ * In flush and clear mode the persistence context is flushed after each write, and after each JDBC
+ * batch in bulk create mode, and the written entities are detached, so later flushes do not check
+ * them. The entities returned by the write methods are then detached, and changes made to them
+ * later are not written unless they are written again. Other entities of the persistence context
+ * stay managed.
  */
 public class EntityService<T extends CrudEntity<ID>,ID extends Serializable> {
 
+    public static final int IN_LIST_SIZE = 1000;
+
     @Autowired
     private JpaRepository<T,ID> jpaRepository;
 
     @PersistenceContext
     private EntityManager entityManager;
 
+    private boolean bulkCreate;
+
+    private boolean upsert;
+
+    private boolean flushAndClear;
+
+    private String[] upsertKey = {};
+
+    private volatile JpaEntityInformation<T,?> entityInformation;
+
+    private volatile MergeStatement<T> mergeStatement;
+
     public JpaRepository<T,ID> getJpaRepository() {
         return jpaRepository;
     }
@@ -55,11 +108,34 @@ public class EntityService<T extends CrudEntity<ID>,ID extends Serializable> {
                     throw new ApplicationException("ID should not be provided on create.");
                 }
             });
-            created = jpaRepository.save(entities);
+            created = bulkCreate ? persistInBatches(entities) : jpaRepository.save(entities);
+            afterWrite(created);
         }
         return created;
     }
 
+    private <S extends T> List<S> persistInBatches(Iterable<S> entities) {
+        final int batchSize = getJdbcBatchSize();
+        final List<S> persisted = new ArrayList<>();
+        for (S entity : entities) {
+            entityManager.persist(entity);
+            persisted.add(entity);
+            if (persisted.size() % batchSize == 0) {
+                entityManager.flush();
+                if (flushAndClear) {
+                    persisted.subList(persisted.size() - batchSize, persisted.size()).forEach(entityManager::detach);
+                }
+            }
+        }
+        entityManager.flush();
+        return persisted;
+    }
+
+    private int getJdbcBatchSize() {
+        final Object batchSize = entityManager.getEntityManagerFactory().getProperties().get(HibernateConfiguration.JDBC_BATCH_SIZE);
+        return batchSize == null ? HibernateConfiguration.DEFAULT_JDBC_BATCH_SIZE : Math.max(1, Integer.parseInt(batchSize.toString()));
+    }
+
     @Transactional(rollbackFor = Throwable.class)
     public List<T> update(T... entities) {
         return update(Arrays.asList(entities));
@@ -74,18 +150,63 @@ public class EntityService<T extends CrudEntity<ID>,ID extends Serializable> {
     public <S extends T> List<S> update(Iterable<S> entities) {
         List<S> updated = null;
         if (entities != null) {
+            final List<S> list = new ArrayList<>();
             entities.forEach(entity -> {
                 if (entity.getId() == null) {
                     throw new ApplicationException("ID should be provided on update.");
-                } else if (!jpaRepository.exists(entity.getId())) {
+                }
+                list.add(entity);
+            });
+            final Set<Object> existingIds = findExistingIds(list.stream().map(CrudEntity::getId).collect(Collectors.toList()));
+            list.forEach(entity -> {
+                if (!existingIds.contains(entity.getId())) {
                     throw new ApplicationException("Entity identified by " + entity.getId() + " does not exist.");
                 }
             });
-            updated = jpaRepository.save(entities);
+            updated = list.stream().map(this::reattach).collect(Collectors.toList());
+            afterWrite(updated);
         }
         return updated;
     }
 
+    private Set<Object> findExistingIds(List<ID> ids) {
+        final JpaEntityInformation<T,?> info = getEntityInformation();
+        final String idAttribute = info.getIdAttribute().getName();
+        final String jpql = "select e." + idAttribute + " from " + info.getEntityName() + " e where e." + idAttribute + " in :ids";
+        final Set<Object> existingIds = new HashSet<>();
+        for (int i = 0; i < ids.size(); i += IN_LIST_SIZE) {
+            final List<ID> slice = ids.subList(i, Math.min(i + IN_LIST_SIZE, ids.size()));
+            existingIds.addAll(entityManager.createQuery(jpql, Object.class).setParameter("ids", slice).getResultList());
+        }
+        return existingIds;
+    }
+
+    /**
+     * Reattaches a detached entity, which is updated on flush without selecting its row. The
+     * entity is merged instead if another instance with the same ID is in the persistence context.
+     */
+    private <S extends T> S reattach(S entity) {
+        if (entityManager.contains(entity)) {
+            return entity;
+        }
+        try {
+            entityManager.unwrap(Session.class).update(entity);
+            return entity;
+        } catch (NonUniqueObjectException e) {
+            return entityManager.merge(entity);
+        }
+    }
+
+    private JpaEntityInformation<T,?> getEntityInformation() {
+        if (entityInformation == null) {
+            // the first type argument of the service is the entity class
+            @SuppressWarnings("unchecked")
+            final Class<T> domainClass = (Class<T>) GenericTypeResolver.resolveTypeArguments(ClassUtils.getUserClass(getClass()), EntityService.class)[0];
+            entityInformation = JpaEntityInformationSupport.getEntityInformation(domainClass, entityManager);
+        }
+        return entityInformation;
+    }
+
     @Transactional(rollbackFor = Throwable.class)
     public List<T> save(T... entities) {
         return save(Arrays.asList(entities));
@@ -98,6 +219,9 @@ public class EntityService<T extends CrudEntity<ID>,ID extends Serializable> {
 
     @Transactional(rollbackFor = Throwable.class)
     public <S extends T> List<S> save(Iterable<S> entities) {
+        if (upsert) {
+            return upsert(entities);
+        }
         Map<Boolean,List<S>> m = StreamSupport.stream(entities.spliterator(), false).collect(Collectors.partitioningBy(e -> e.getId() == null));
         List<S> l = new ArrayList<>();
         l.addAll(update(m.get(false)));
@@ -105,8 +229,106 @@ public class EntityService<T extends CrudEntity<ID>,ID extends Serializable> {
         return l;
     }
 
+    @Transactional(rollbackFor = Throwable.class)
+    public <S extends T> List<S> upsert(Iterable<S> entities) {
+        final List<S> list = new ArrayList<>();
+        entities.forEach(list::add);
+        final SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        final IdentifierGenerator idGenerator = session.getFactory().getIdentifierGenerator(getEntityInformation().getJavaType().getName());
+        final MergeStatement<T> statement = getMergeStatement();
+        list.stream().filter(entity -> entity.getId() == null)
+            .forEach(entity -> statement.setId(entity, idGenerator.generate(session, entity)));
+        // pending changes of the persistence context are written before the merge
+        entityManager.flush();
+        // the IDs of the written entities may change when they are read back
+        list.stream().filter(entityManager::contains).forEach(entityManager::detach);
+        // the statement inspector applies the session interceptor unless an inspector is configured
+        final StatementInspector inspector = ((JdbcSessionOwner) session).getJdbcSessionContext().getStatementInspector();
+        final int batchSize = getJdbcBatchSize();
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(inspector.inspect(statement.getSql()))) {
+                for (int i = 0; i < list.size(); i++) {
+                    statement.bind(ps, list.get(i));
+                    ps.addBatch();
+                    if ((i + 1) % batchSize == 0 || i == list.size() - 1) {
+                        ps.executeBatch();
+                    }
+                }
+            }
+            // matched rows keep their IDs
+            statement.readIds(connection, list, batchSize, inspector::inspect);
+        });
+        evict(session, list);
+        afterWrite(list);
+        return list;
+    }
+
+    /**
+     * Detaches the instances of the rows of the entities from the persistence context, as their
+     * state is older than the rows written by the merge.
+     */
+    private void evict(final SessionImplementor session, final List<? extends T> entities) {
+        final EntityPersister persister = session.getFactory().getEntityPersister(getEntityInformation().getJavaType().getName());
+        for (T entity : entities) {
+            final Object managed = session.getPersistenceContext().getEntity(session.generateEntityKey(entity.getId(), persister));
+            if (managed != null) {
+                entityManager.detach(managed);
+            }
+        }
+    }
+
+    /**
+     * Flushes the persistence context and detaches the written entities in flush and clear mode.
+     */
+    private void afterWrite(final List<? extends T> written) {
+        if (flushAndClear) {
+            entityManager.flush();
+            written.stream().filter(entityManager::contains).forEach(entityManager::detach);
+        }
+    }
+
+    private MergeStatement<T> getMergeStatement() {
+        if (mergeStatement == null) {
+            mergeStatement = new MergeStatement<>(getEntityInformation().getJavaType(), upsertKey);
+        }
+        return mergeStatement;
+    }
+
     @Transactional(rollbackFor = Throwable.class)
     public void deleteAll() {
         getJpaRepository().deleteAll();
     }
+
+    public boolean isBulkCreate() {
+        return bulkCreate;
+    }
+
+    public void setBulkCreate(final boolean bulkCreate) {
+        this.bulkCreate = bulkCreate;
+    }
+
+    public boolean isUpsert() {
+        return upsert;
+    }
+
+    public void setUpsert(final boolean upsert) {
+        this.upsert = upsert;
+    }
+
+    public boolean isFlushAndClear() {
+        return flushAndClear;
+    }
+
+    public void setFlushAndClear(final boolean flushAndClear) {
+        this.flushAndClear = flushAndClear;
+    }
+
+    public String[] getUpsertKey() {
+        return upsertKey;
+    }
+
+    public void setUpsertKey(final String... upsertKey) {
+        this.upsertKey = upsertKey;
+        this.mergeStatement = null;
+    }
 }
@@ -0,0 +1,248 @@
+package app.service;
+
+import javax.persistence.Column;
+import javax.persistence.Convert;
+import javax.persistence.Entity;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.OneToOne;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import org.springframework.data.annotation.CreatedDate;
+
+/**
+ * H2 {@code MERGE INTO ... KEY(...)} statement over the {@link Column} annotated fields of an
+ * entity class. Rows are matched by the key columns, which default to the ID column. A matched
+ * row keeps the values of the columns which are not updatable or annotated with
+ * {@link CreatedDate}, as they are only taken from the entity if no row has the key. With other key
+ * columns, such as the columns of a unique constraint, a matched row keeps its ID the same way,
+ * and the IDs of the rows are read back into the entities by {@link #readIds}.
+ * <p>
+ * Values are bound as they are read from the fields, so entity classes with fields which are
+ * mapped without {@link Column}, converted, enumerated or versioned are rejected, except for
+ * read-only {@link ManyToOne} and {@link OneToOne} associations.
+ */
+class MergeStatement<T> {
+
+    private final String sql;
+
+    // fields bound to the parameters of the statement, in order
+    private final List<Field> parameters;
+
+    private final Field id;
+
+    private final String idColumn;
+
+    private final String tableName;
+
+    private final List<String> keys;
+
+    private final List<Field> keyFields;
+
+    private final boolean keyedById;
+
+    MergeStatement(final Class<T> type, final String... keyColumns) {
+        final List<String> columns = new ArrayList<>();
+        final List<Field> fields = new ArrayList<>();
+        final List<Boolean> kept = new ArrayList<>();
+        Field id = null;
+        String idColumn = null;
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            final boolean mapped = c.isAnnotationPresent(Entity.class) || c.isAnnotationPresent(MappedSuperclass.class);
+            for (Field field : c.getDeclaredFields()) {
+                if (mapped) {
+                    checkMapping(type, field);
+                }
+                final Column column = field.getAnnotation(Column.class);
+                if (column != null && column.insertable() && !Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    columns.add(column.name().isEmpty() ? field.getName() : column.name());
+                    fields.add(field);
+                    kept.add(!column.updatable() || field.isAnnotationPresent(CreatedDate.class));
+                    if (field.isAnnotationPresent(Id.class)) {
+                        id = field;
+                        idColumn = columns.get(columns.size() - 1);
+                    }
+                }
+            }
+        }
+        if (id == null) {
+            throw new IllegalStateException("No ID column is defined in " + type.getName() + ".");
+        }
+        this.id = id;
+        this.idColumn = idColumn;
+        keys = keyColumns.length == 0 ? Collections.singletonList(idColumn) : Arrays.asList(keyColumns);
+        keyFields = keys.stream().map(k -> fields.get(indexOf(columns, k))).collect(Collectors.toList());
+        final Table table = type.getAnnotation(Table.class);
+        tableName = table == null || table.name().isEmpty() ? type.getSimpleName() : table.name();
+
+        keyedById = keys.stream().anyMatch(idColumn::equalsIgnoreCase);
+        final String keyCondition = keys.stream().map(k -> k + " = ?").collect(Collectors.joining(" and "));
+        final List<String> values = new ArrayList<>();
+        parameters = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            final boolean key = keyFields.contains(fields.get(i));
+            if (!key && (kept.get(i) || fields.get(i) == id && !keyedById)) {
+                // the value of a matched row is kept
+                values.add("coalesce((select " + columns.get(i) + " from " + tableName + " where " + keyCondition + "), ?)");
+                parameters.addAll(keyFields);
+            } else {
+                values.add("?");
+            }
+            parameters.add(fields.get(i));
+        }
+        sql = "merge into " + tableName + " (" + String.join(", ", columns) + ") key (" + String.join(", ", keys)
+            + ") values (" + String.join(", ", values) + ")";
+    }
+
+    private static void checkMapping(final Class<?> type, final Field field) {
+        if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())
+            || field.isAnnotationPresent(Transient.class)) {
+            return;
+        }
+        final String reason;
+        if (field.isAnnotationPresent(Convert.class)) {
+            reason = "converted";
+        } else if (field.isAnnotationPresent(Enumerated.class)) {
+            reason = "enumerated";
+        } else if (field.isAnnotationPresent(Version.class)) {
+            reason = "versioned";
+        } else if (field.isAnnotationPresent(Column.class) || isReadOnlyAssociation(field)) {
+            return;
+        } else {
+            reason = "mapped without a column";
+        }
+        throw new IllegalStateException("Field " + field.getName() + " of " + type.getName() + " is " + reason
+            + " and cannot be merged.");
+    }
+
+    private static boolean isReadOnlyAssociation(final Field field) {
+        final JoinColumn joinColumn = field.getAnnotation(JoinColumn.class);
+        return (field.isAnnotationPresent(ManyToOne.class) || field.isAnnotationPresent(OneToOne.class))
+            && joinColumn != null && !joinColumn.insertable() && !joinColumn.updatable();
+    }
+
+    private static int indexOf(final List<String> columns, final String column) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Key column " + column + " is not defined.");
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    /**
+     * Sets the ID of an entity.
+     */
+    void setId(final T entity, final Object value) {
+        try {
+            id.set(entity, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the IDs of the merged rows into the entities, with one query per {@code batchSize}
+     * entities. Nothing is read if rows are matched by ID.
+     * @param prepare applied to each query before it is prepared
+     */
+    void readIds(final Connection connection, final List<? extends T> entities, final int batchSize,
+                 final UnaryOperator<String> prepare) throws SQLException {
+        if (keyedById) {
+            return;
+        }
+        final String keyCondition = "(" + keys.stream().map(k -> k + " = ?").collect(Collectors.joining(" and ")) + ")";
+        for (int from = 0; from < entities.size(); from += batchSize) {
+            final List<? extends T> slice = entities.subList(from, Math.min(from + batchSize, entities.size()));
+            final String query = "select " + idColumn + ", " + String.join(", ", keys) + " from " + tableName + " where "
+                + String.join(" or ", Collections.nCopies(slice.size(), keyCondition));
+            final Map<List<Object>, Object> ids = new HashMap<>();
+            try (PreparedStatement ps = connection.prepareStatement(prepare.apply(query))) {
+                int n = 1;
+                for (T entity : slice) {
+                    for (Object value : getKey(entity)) {
+                        ps.setObject(n++, value);
+                    }
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        final List<Object> key = new ArrayList<>(keys.size());
+                        for (int i = 0; i < keys.size(); i++) {
+                            key.add(rs.getObject(i + 2));
+                        }
+                        ids.put(key, rs.getObject(1, id.getType()));
+                    }
+                }
+            }
+            for (T entity : slice) {
+                final Object value = ids.get(getKey(entity));
+                if (value == null) {
+                    throw new IllegalStateException("No row of " + tableName + " has the key " + getKey(entity) + ".");
+                }
+                setId(entity, value);
+            }
+        }
+    }
+
+    private List<Object> getKey(final T entity) {
+        try {
+            final List<Object> key = new ArrayList<>(keyFields.size());
+            for (Field field : keyFields) {
+                key.add(toJdbcValue(field.get(entity)));
+            }
+            return key;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Binds the values of an entity to the parameters of the statement.
+     */
+    void bind(final PreparedStatement ps, final T entity) throws SQLException {
+        try {
+            for (int i = 0; i < parameters.size(); i++) {
+                ps.setObject(i + 1, toJdbcValue(parameters.get(i).get(entity)));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object toJdbcValue(final Object value) {
+        if (value instanceof LocalDate) {
+            return Date.valueOf((LocalDate) value);
+        } else if (value instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value);
+        }
+        return value;
+    }
+
+}
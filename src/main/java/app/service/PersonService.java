@@ -9,4 +9,13 @@ import org.springframework.stereotype.Service;
 @Service
 public class PersonService extends EntityService<Person,String> {
 
+    public PersonService() {
+        // person IDs are generated by uuid2, so new persons are inserted in JDBC batches
+        setBulkCreate(true);
+        // written persons are not used after the write, so they are detached; other entities stay managed
+        setFlushAndClear(true);
+        // upserts match persons by the unique name
+        setUpsertKey("first_name", "last_name");
+    }
+
 }
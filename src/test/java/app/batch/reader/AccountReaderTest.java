@@ -4,7 +4,10 @@ import javax.annotation.Resource;
 import javax.sql.DataSource;
 import java.math.BigDecimal;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import app.batch.partitioner.KeyRangePartitioner;
 import app.model.Account;
 import app.model.AccountHolder;
 import app.model.Position;
@@ -56,6 +59,12 @@ public class AccountReaderTest {
     @Resource
     private StructuredItemReader<Account> accountReader;
 
+    @Resource
+    private StructuredItemReader<Account> accountSplitFetchReader;
+
+    @Resource
+    private KeyRangePartitioner accountPartitioner;
+
     private List<Account> accounts;
 
     private List<AccountHolder> accountHolders;
@@ -126,5 +135,64 @@ public class AccountReaderTest {
         accountReader.close();
     }
 
+    @Transactional
+    @Test
+    public void readSplitFetch() throws Exception {
+        ExecutionContext executionContext = mock(ExecutionContext.class);
+        accountSplitFetchReader.open(executionContext);
+
+        Account acc1 = accountSplitFetchReader.read();
+        assertThat(acc1, equalTo(accounts.get(0)));
+        assertThat(acc1.getAccountHolders(), equalTo(accounts.get(0).getAccountHolders()));
+        assertThat(acc1.getPositions(), equalTo(accounts.get(0).getPositions()));
+
+        Account acc2 = accountSplitFetchReader.read();
+        assertThat(acc2, equalTo(accounts.get(1)));
+        assertThat(acc2.getAccountHolders(), equalTo(accounts.get(1).getAccountHolders()));
+        assertThat(acc2.getPositions(), equalTo(accounts.get(1).getPositions()));
+        assertThat(accountSplitFetchReader.read(), nullValue());
+
+        accountSplitFetchReader.close();
+    }
+
+    @Transactional
+    @Test
+    public void restart() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        accountReader.open(executionContext);
+        assertThat(accountReader.read(), equalTo(accounts.get(0)));
+        accountReader.update(executionContext);
+        accountReader.close();
+
+        // delete the first account so that replaying by item count would skip the second one
+        jdbcTemplate.update("delete from account_holder where account_id = 1");
+        jdbcTemplate.update("delete from position where account_id = 1");
+        jdbcTemplate.update("delete from account where id = 1");
+
+        accountReader.open(executionContext);
+        Account acc2 = accountReader.read();
+        assertThat(acc2, equalTo(accounts.get(1)));
+        assertThat(acc2.getAccountHolders().get(0), equalTo(accountHolders.get(2)));
+        assertThat(accountReader.read(), nullValue());
+        accountReader.close();
+    }
+
+    @Transactional
+    @Test
+    public void readPartitions() throws Exception {
+        Map<String, ExecutionContext> partitions = accountPartitioner.partition(2);
+        assertThat(partitions.size(), equalTo(2));
+
+        List<Account> result = new ArrayList<>();
+        for (ExecutionContext executionContext : partitions.values()) {
+            accountReader.open(executionContext);
+            Account acc = accountReader.read();
+            assertThat(acc.getAccountHolders().size(), equalTo(acc.getId() == 1 ? 2 : 1));
+            result.add(acc);
+            assertThat(accountReader.read(), nullValue());
+            accountReader.close();
+        }
+        assertThat(result, equalTo(accounts));
+    }
 
 }
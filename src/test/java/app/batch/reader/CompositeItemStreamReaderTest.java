@@ -3,7 +3,11 @@ package app.batch.reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +21,7 @@ import org.springframework.batch.item.UnexpectedInputException;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Created by Liu on 9/24/2017.
@@ -83,6 +88,199 @@ public class CompositeItemStreamReaderTest {
     }
 
 
+    @Test
+    public void concurrentReaders() throws Exception {
+        final ExecutionContext executionContext = new ExecutionContext();
+        final ItemStreamReader<Integer> r1 = createItemStreamReader(1, 500);
+        final ItemStreamReader<Integer> r2 = createItemStreamReader(501, 500);
+        final ItemStreamReader<Integer> r3 = createItemStreamReader(1001, 1500);
+        final CompositeItemStreamReader<Integer> r = new CompositeItemStreamReader<>(Arrays.asList(r1, r2, r3));
+        r.setConcurrent(true);
+        r.setBufferSize(10);
+
+        final List<Integer> result = new ArrayList<>();
+        try {
+            r.open(executionContext);
+
+            Integer o;
+            while ((o = r.read()) != null) {
+                result.add(o);
+            }
+        } finally {
+            r.close();
+        }
+        Collections.sort(result);
+        assertThat(result, is(IntStream.rangeClosed(1, 1500).boxed().filter(i -> i <= 500 || i > 1000).collect(Collectors.toList())));
+    }
+
+    @Test
+    public void concurrentReadersClosedEarly() throws Exception {
+        final CompositeItemStreamReader<Integer> r = new CompositeItemStreamReader<>(Arrays.asList(
+            createItemStreamReader(1, 1000), createItemStreamReader(1001, 2000)));
+        r.setConcurrent(true);
+        r.setBufferSize(10);
+        r.open(new ExecutionContext());
+        assertThat(r.read() != null, is(true));
+        r.close();
+    }
+
+    @Test
+    public void concurrentReadersSaveNoState() throws Exception {
+        final ExecutionContext executionContext = new ExecutionContext();
+        CompositeItemStreamReader<Integer> r = new CompositeItemStreamReader<>(Arrays.asList(
+            createItemStreamReader(1, 100), createItemStreamReader(101, 200)));
+        r.setConcurrent(true);
+        r.open(executionContext);
+        for (int i = 0; i < 10; i++) {
+            r.read();
+        }
+        r.update(executionContext);
+        r.close();
+        assertThat(executionContext.containsKey("CompositeItemStreamReader.read.count"), is(false));
+
+        // a count saved in sequential mode cannot be restored
+        executionContext.putInt("CompositeItemStreamReader.read.count", 10);
+        r = new CompositeItemStreamReader<>(Arrays.asList(
+            createItemStreamReader(1, 100), createItemStreamReader(101, 200)));
+        r.setConcurrent(true);
+        try {
+            r.open(executionContext);
+            fail();
+        } catch (ItemStreamException e) {
+            assertThat(e.getCause() instanceof IllegalStateException, is(true));
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void sortedReaders() throws Exception {
+        final ItemStreamReader<Integer> r1 = createListReader(Arrays.asList(1, 4, 4, 9));
+        final ItemStreamReader<Integer> r2 = createListReader(Arrays.asList(2, 3, 10));
+        final ItemStreamReader<Integer> r3 = createListReader(Collections.emptyList());
+        final ItemStreamReader<Integer> r4 = createListReader(Arrays.asList(4, 5));
+        final CompositeItemStreamReader<Integer> r = new CompositeItemStreamReader<>(Arrays.asList(r1, r2, r3, r4));
+        r.setComparator(Comparator.naturalOrder());
+
+        final List<Integer> result = new ArrayList<>();
+        try {
+            r.open(new ExecutionContext());
+            Integer o;
+            while ((o = r.read()) != null) {
+                result.add(o);
+            }
+        } finally {
+            r.close();
+        }
+        assertThat(result, contains(1, 2, 3, 4, 4, 4, 5, 9, 10));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unsortedReaders() throws Exception {
+        final CompositeItemStreamReader<Integer> r = new CompositeItemStreamReader<>(Arrays.asList(
+            createListReader(Arrays.asList(1, 3)), createListReader(Arrays.asList(5, 2))));
+        r.setComparator(Comparator.naturalOrder());
+        try {
+            r.open(new ExecutionContext());
+            while (r.read() != null) {
+                LOGGER.info("Read item");
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void restart() throws Exception {
+        final ExecutionContext executionContext = new ExecutionContext();
+        final List<Integer> opened = new ArrayList<>();
+        CompositeItemStreamReader<Integer> r = new CompositeItemStreamReader<>(Arrays.asList(
+            createListReader(Arrays.asList(1, 2, 3), opened), createListReader(Arrays.asList(4, 5, 6), opened)));
+
+        final List<Integer> result = new ArrayList<>();
+        try {
+            r.open(executionContext);
+            // delegates are opened when they become current
+            assertThat(opened, contains(1));
+            for (int i = 0; i < 4; i++) {
+                result.add(r.read());
+            }
+            r.update(executionContext);
+        } finally {
+            r.close();
+        }
+        assertThat(executionContext.getInt("CompositeItemStreamReader.delegate.index"), is(1));
+        assertThat(executionContext.getInt("CompositeItemStreamReader.delegate.start"), is(3));
+
+        opened.clear();
+        r = new CompositeItemStreamReader<>(Arrays.asList(
+            createListReader(Arrays.asList(1, 2, 3), opened), createListReader(Arrays.asList(4, 5, 6), opened)));
+        try {
+            r.open(executionContext);
+            Integer o;
+            while ((o = r.read()) != null) {
+                result.add(o);
+            }
+        } finally {
+            r.close();
+        }
+        // the completed delegate is not opened again
+        assertThat(opened, contains(4));
+        assertThat(result, contains(1, 2, 3, 4, 5, 6));
+    }
+
+    private ItemStreamReader<Integer> createListReader(List<Integer> items, List<Integer> opened) {
+        final ItemStreamReader<Integer> reader = createListReader(items);
+        return new ItemStreamReader<Integer>() {
+
+            @Override
+            public Integer read() throws Exception {
+                return reader.read();
+            }
+
+            @Override
+            public void open(final ExecutionContext executionContext) throws ItemStreamException {
+                opened.add(items.get(0));
+            }
+
+            @Override
+            public void update(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void close() throws ItemStreamException {
+
+            }
+        };
+    }
+
+    private ItemStreamReader<Integer> createListReader(List<Integer> items) {
+        final Iterator<Integer> itr = items.iterator();
+        return new ItemStreamReader<Integer>() {
+
+            @Override
+            public Integer read() {
+                return itr.hasNext() ? itr.next() : null;
+            }
+
+            @Override
+            public void open(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void update(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void close() throws ItemStreamException {
+
+            }
+        };
+    }
+
 
     private ItemStreamReader<Integer> createItemStreamReader(int lb, int ub) {
         return new ItemStreamReader<Integer>() {
@@ -1,14 +1,20 @@
 package app.batch.reader;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -16,6 +22,10 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +36,13 @@ import org.springframework.batch.item.NonTransientResourceException;
 import org.springframework.batch.item.ParseException;
 import org.springframework.batch.item.UnexpectedInputException;
 
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
 /**
  * Created by Liu on 9/21/2017.
  */
@@ -42,10 +59,192 @@ public class ForkableItemStreamReaderTest {
 
     @Test
     public void test() throws Exception {
+        read(createReader(100000));
+    }
+
+    @Test
+    public void testExecutorGroup() throws Exception {
+        // slave readers from level 2 on run in the thread of their parent
+        ForkableExecutorGroup group = new ForkableExecutorGroup("fork-test", 2, 8, 2, 1);
+        ForkableItemStreamReader<Map<String,Object>> reader = createReader(1000);
+        reader.setExecutorGroup(group);
+
+        int count = 0;
+        long maxThreadCount = 0;
+        try {
+            reader.open(new ExecutionContext());
+            while (reader.read() != null) {
+                count++;
+                maxThreadCount = Math.max(maxThreadCount, Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().startsWith("fork-test-")).count());
+            }
+        } finally {
+            reader.close();
+            group.shutdown();
+        }
+
+        // ids divisible by 37 are filtered and id 38 is mapped twice
+        assertThat(count, is(1000 - 27 + 1));
+        assertThat(maxThreadCount <= 2 * 2 + 2, is(true));
+        assertThat(group.isShutdown(), is(true));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        ForkableItemStreamReader<Map<String,Object>> reader = createReader(300);
+        ForkableItemStreamReader<Map<String,Object>> other = createReader(10);
+        ExecutionContext executionContext = new ExecutionContext();
+        reader.open(executionContext);
+        other.open(new ExecutionContext());
+        // readers of the same name are registered apart
+        ObjectName objectName = reader.getMetrics().getObjectName();
+        assertThat(objectName.getKeyProperty("name"), is("\"ForkableItemStreamReader\""));
+        assertThat(other.getMetrics().getObjectName(), is(not(objectName)));
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName), is(true));
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(other.getMetrics().getObjectName()), is(true));
+        // registered metrics are not replaced
+        try {
+            new ForkableReaderMetrics().register("ForkableItemStreamReader", Long.parseLong(objectName.getKeyProperty("id")));
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName), is(true));
+        }
+        while (other.read() != null) {
+            // drain
+        }
+        other.close();
+        while (reader.read() != null) {
+            reader.update(executionContext);
+        }
+        reader.update(executionContext);
+        reader.close();
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName), is(false));
+
+        Map<String,Long> summary = ForkableReaderMetrics.getSummary(executionContext, "ForkableItemStreamReader.metrics");
+        assertThat(summary.get("root.read.count"), is(3L));
+        assertThat(summary.get("root/provider0.open.count"), is(3L));
+        assertThat(summary.get("root/provider0/provider1.open.count"), is(3L));
+        assertThat(summary.get("root/provider1.merge.count") > 0, is(true));
+        assertThat(summary.get("itemPool.size"), is(0L));
+    }
+
+    @Test
+    public void testTuned() throws Exception {
+        ForkableTuner tuner = new ForkableTuner();
+        tuner.setWindowSize(2);
+        tuner.setMaxConcurrency(8);
+        ForkableItemStreamReader<Map<String,Object>> reader = createReader(1000);
+        reader.setBatchSize(20);
+        reader.setTuner(tuner);
+
+        assertThat(read(reader), is(1000 - 27 + 1));
+        ExecutionContext executionContext = new ExecutionContext();
+        reader.update(executionContext);
+        assertThat(executionContext.getInt("ForkableItemStreamReader.tuned.batchSize"), is(tuner.getBatchSize()));
+        assertThat(executionContext.getInt("ForkableItemStreamReader.tuned.maxConcurrentBatchCount") <= 8, is(true));
+    }
+
+    @Test
+    public void testUnordered() throws Exception {
+        ForkableItemStreamReader<Map<String,Object>> reader = createReader(1000);
+        reader.setOrdered(false);
+        reader.setMaxConcurrentBatchCount(4);
+
+        assertThat(read(reader), is(1000 - 27 + 1));
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        ForkableItemStreamReader<Map<String,Object>> reader = createReader(1000);
+        reader.setMaxHeapItems(32);
+        ExecutionContext executionContext = new ExecutionContext();
+        List<Map<String,Object>> items = new LinkedList<>();
+        try {
+            reader.open(executionContext);
+            Map<String,Object> o;
+            while ((o = reader.read()) != null) {
+                items.add(o);
+            }
+            reader.update(executionContext);
+        } finally {
+            reader.close();
+        }
+
+        assertThat(items.size(), is(1000 - 27 + 1));
+        Map<String,Object> item = items.stream().filter(o -> (Integer) o.get("id") == 66).findFirst().get();
+        assertThat(item.get("description"), is(66));
+        assertThat(item.get("d3"), is(66));
+        assertThat(item.get("d11"), is(66));
+        Map<String,Long> summary = ForkableReaderMetrics.getSummary(executionContext, "ForkableItemStreamReader.metrics");
+        assertThat(summary.get("spill.count") > 0, is(true));
+        assertThat(summary.get("itemPool.size"), is(0L));
+    }
+
+    @Test
+    public void testFlowable() throws Exception {
+        for (boolean ordered : new boolean[] {true, false}) {
+            FlowableItemStreamReader<Map<String,Object>> reader = new FlowableItemStreamReader<>(new CompositeItemStreamReader<>(
+                createDelegateReader("name", f -> constructList(f, 1, 1000), null)
+            ));
+            reader.addSlaveReaderProvider(new ForkableItemStreamReader.Provider<>(items -> getSlaveItemStreamReader("code", items), keyFunction, mergeFunction, false));
+            reader.addSlaveReaderProvider(new ForkableItemStreamReader.Provider<>(items -> getSlaveItemStreamReader("description", items), keyFunction, mergeFunction, false));
+            reader.setFilter((o, ctx) -> (Integer) o.get("id") % 37 != 0);
+            reader.setMapper((item, ctx) -> (Integer) item.get("id") == 38 ? Arrays.asList(item, item) : Collections.singletonList(item));
+            reader.setOrdered(ordered);
+
+            ExecutionContext executionContext = new ExecutionContext();
+            List<Map<String,Object>> items = new ArrayList<>();
+            try {
+                reader.open(executionContext);
+                Map<String,Object> o;
+                while ((o = reader.read()) != null) {
+                    items.add(o);
+                }
+                reader.update(executionContext);
+            } finally {
+                reader.close();
+            }
+
+            assertThat(items.size(), is(1000 - 27 + 1));
+            // the slave item of 99 fails to be read
+            for (Map<String,Object> o : items) {
+                Object id = o.get("id");
+                assertThat(o.get("code"), is((Integer) id == 99 ? null : id));
+                assertThat(o.get("description"), is((Integer) id == 99 ? null : id));
+                assertThat(o.get("d2"), is((Integer) id % 2 == 0 ? id : null));
+            }
+            List<Integer> ids = items.stream().map(o -> (Integer) o.get("id")).collect(Collectors.toList());
+            if (ordered) {
+                assertThat(ids, is(ids.stream().sorted().collect(Collectors.toList())));
+                // the read returning null is counted too
+                assertThat(executionContext.getInt("FlowableItemStreamReader.read.count"), is(items.size() + 1));
+            } else {
+                assertThat(executionContext.containsKey("FlowableItemStreamReader.read.count"), is(false));
+            }
+        }
+    }
+
+    @Test
+    public void testFlowableUnorderedRestart() throws Exception {
+        FlowableItemStreamReader<Map<String,Object>> reader = new FlowableItemStreamReader<>(createListReader(constructList("name", 1, 10)));
+        reader.setOrdered(false);
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContext.putInt("FlowableItemStreamReader.read.count", 5);
+        try {
+            reader.open(executionContext);
+            fail();
+        } catch (ItemStreamException e) {
+            assertThat(e.getCause() instanceof IllegalStateException, is(true));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private ForkableItemStreamReader<Map<String,Object>> createReader(int size) {
         ForkableItemStreamReader<Map<String,Object>> reader = new ForkableItemStreamReader<>();
 
         ItemStreamReader<Map<String,Object>> delegate = new CompositeItemStreamReader<>(
-            createDelegateReader("name", f -> constructList(f, 1, 100000), null)
+            createDelegateReader("name", f -> constructList(f, 1, size), null)
         );
 
         reader.setDelegate(delegate);
@@ -63,7 +262,7 @@ public class ForkableItemStreamReaderTest {
             return c;
         });
 
-        read(reader);
+        return reader;
     }
 
     @Test
@@ -82,18 +281,286 @@ public class ForkableItemStreamReaderTest {
         read(reader);
     }
 
-    private <T> void read(ItemStreamReader<T> reader) throws Exception {
+    @Test
+    public void testBroadcast() throws Exception {
+        ForkableItemStreamReader<Map<String,Object>> reader = new ForkableItemStreamReader<>();
+        ItemStreamReader<Map<String,Object>> delegate = new CompositeItemStreamReader<>(
+            createDelegateReader("fk1", f -> constructFkList(f, 1, 34), null),
+            createDelegateReader("fk2", f -> constructFkList(f, 35, 67), null)
+        );
+        reader.setDelegate(delegate);
+        reader.setBatchSize(10);
+        Map<String,Object> dimension = new ConcurrentHashMap<>();
+        dimension.put("fk1", 100);
+        dimension.put("code1", 101);
+        reader.addBroadcastProvider(new BroadcastSlaveReaderProvider<>(createListReader(Collections.singletonList(dimension)), m -> m.get("fk1"), mergeFunction, true));
+        reader.addSlaveReaderProvider(new ForkableItemStreamReader.Provider<>(items -> getSlaveItemStreamReader("code", items), keyFunction, mergeFunction, false));
+
+        ExecutionContext executionContext = new ExecutionContext();
+        List<Map<String,Object>> items = new LinkedList<>();
+        try {
+            reader.open(executionContext);
+            Map<String,Object> o;
+            while ((o = reader.read()) != null) {
+                items.add(o);
+            }
+            reader.update(executionContext);
+        } finally {
+            reader.close();
+        }
+
+        // items without fk1 are removed by the inner join
+        assertThat(items.size(), is(34));
+        assertThat(items.stream().allMatch(o -> Integer.valueOf(101).equals(o.get("code1"))), is(true));
+        assertThat(items.stream().filter(o -> o.get("code") != null).count() > 0, is(true));
+        Map<String,Long> summary = ForkableReaderMetrics.getSummary(executionContext, "ForkableItemStreamReader.metrics");
+        assertThat(summary.get("root/broadcast0.merge.count"), is(34L));
+        assertThat(summary.get("root/broadcast0.probe.count"), is(7L));
+    }
+
+    @Test
+    public void testFlowableBroadcast() throws Exception {
+        for (boolean ordered : new boolean[] {true, false}) {
+            FlowableItemStreamReader<Map<String,Object>> reader = new FlowableItemStreamReader<>(new CompositeItemStreamReader<>(
+                createDelegateReader("fk1", f -> constructFkList(f, 1, 34), null),
+                createDelegateReader("fk2", f -> constructFkList(f, 35, 67), null)
+            ));
+            reader.setBatchSize(10);
+            reader.setOrdered(ordered);
+            Map<String,Object> dimension = new ConcurrentHashMap<>();
+            dimension.put("fk1", 100);
+            dimension.put("code1", 101);
+            reader.addBroadcastProvider(new BroadcastSlaveReaderProvider<>(createListReader(Collections.singletonList(dimension)), m -> m.get("fk1"), mergeFunction, true));
+            reader.addSlaveReaderProvider(new ForkableItemStreamReader.Provider<>(items -> getSlaveItemStreamReader("code", items), keyFunction, mergeFunction, false));
+
+            List<Map<String,Object>> items = new LinkedList<>();
+            try {
+                reader.open(new ExecutionContext());
+                Map<String,Object> o;
+                while ((o = reader.read()) != null) {
+                    items.add(o);
+                }
+            } finally {
+                reader.close();
+            }
+
+            // items without fk1 are removed by the inner join
+            assertThat(items.size(), is(34));
+            assertThat(items.stream().allMatch(o -> Integer.valueOf(101).equals(o.get("code1"))), is(true));
+            assertThat(items.stream().filter(o -> o.get("code") != null).count() > 0, is(true));
+        }
+    }
+
+    @Test
+    public void restart() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        Set<Object> ids = new HashSet<>();
+        ForkableItemStreamReader<Map<String,Object>> reader = createRestartableReader(1000);
+        reader.open(executionContext);
+        for (int i = 0; i < 350; i++) {
+            ids.add(reader.read().get("id"));
+        }
+        reader.update(executionContext);
+        reader.close();
+        assertThat(executionContext.getInt("ForkableItemStreamReader.batch.index"), is(3));
+        assertThat(executionContext.getInt("ForkableItemStreamReader.batch.offset"), is(50));
+        assertThat(executionContext.getInt("ForkableItemStreamReader.read.count"), is(350));
+
+        // the batch after the last completed batch is processed again, without the items already read
+        reader = createRestartableReader(1000);
+        reader.open(executionContext);
+        int count = 0;
+        Map<String,Object> o;
+        while ((o = reader.read()) != null) {
+            assertThat(o.containsKey("description") || (Integer) o.get("id") == 99, is(true));
+            ids.add(o.get("id"));
+            count++;
+        }
+        reader.close();
+        assertThat(count, is(650));
+        assertThat(ids.size(), is(1000));
+    }
+
+    @Test
+    public void duplicateName() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        ForkableItemStreamReader<Map<String,Object>> reader = createRestartableReader(10);
+        ForkableItemStreamReader<Map<String,Object>> other = createRestartableReader(10);
+        reader.open(executionContext);
+        try {
+            // the readers would overwrite the state of each other
+            other.open(executionContext);
+            fail();
+        } catch (IllegalStateException e) {
+            other.setName("other");
+            other.open(executionContext);
+        } finally {
+            reader.close();
+            other.close();
+        }
+        // the name is released on close
+        reader = createRestartableReader(10);
+        reader.open(executionContext);
+        reader.close();
+    }
+
+    @Test
+    public void closeEarly() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final AbstractAppender appender = new AbstractAppender("closeEarly", null, null) {
+            @Override
+            public void append(final LogEvent event) {
+                if (event.getLevel().isMoreSpecificThan(Level.WARN)) {
+                    events.add(event.getMessage().getFormattedMessage());
+                }
+            }
+        };
+        appender.start();
+        final org.apache.logging.log4j.core.Logger logger =
+            (org.apache.logging.log4j.core.Logger) LogManager.getLogger(ForkableItemStreamReader.class);
+        logger.addAppender(appender);
+
+        final AtomicBoolean delegateClosed = new AtomicBoolean();
+        final AtomicBoolean readAfterClose = new AtomicBoolean();
+        final ItemStreamReader<Map<String,Object>> items = createListReader(constructList("name", 100, 3000));
+        ForkableItemStreamReader<Map<String,Object>> reader = new ForkableItemStreamReader<>(new ItemStreamReader<Map<String,Object>>() {
+
+            @Override
+            public void open(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void update(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void close() throws ItemStreamException {
+                delegateClosed.set(true);
+            }
+
+            @Override
+            public Map<String,Object> read() throws Exception {
+                readAfterClose.compareAndSet(false, delegateClosed.get());
+                return items.read();
+            }
+
+        });
+        reader.addSlaveReaderProvider(new ForkableItemStreamReader.Provider<>(c -> getSlaveItemStreamReader("description", c), keyFunction, mergeFunction, false));
+        reader.setBatchSize(20);
+        try {
+            reader.open(new ExecutionContext());
+            for (int i = 0; i < 150; i++) {
+                assertThat(reader.read(), notNullValue());
+            }
+            // batches are still in flight
+            reader.close();
+        } finally {
+            logger.removeAppender(appender);
+        }
+        assertThat(delegateClosed.get(), is(true));
+        assertThat(readAfterClose.get(), is(false));
+        assertThat(events, is(empty()));
+    }
+
+    @Test
+    public void testLongKeyFunction() throws Exception {
+        ForkableItemStreamReader.LongKeyFunction<Map<String,Object>> longKeyFunction = m -> (Integer) m.get("id");
+        ForkableItemStreamReader<Map<String,Object>> reader = new ForkableItemStreamReader<>(createListReader(constructList("name", 1, 300)));
+        reader.addSlaveReaderProvider(new ForkableItemStreamReader.Provider<>(items -> getSlaveItemStreamReader("description", items), longKeyFunction, mergeFunction, false));
+
+        int count = 0;
+        try {
+            reader.open(new ExecutionContext());
+            Map<String,Object> o;
+            while ((o = reader.read()) != null) {
+                // the slave reader fails to read id 99
+                assertThat(o.get("description"), is((Integer) o.get("id") == 99 ? null : o.get("id")));
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertThat(count, is(300));
+    }
+
+    private ForkableItemStreamReader<Map<String,Object>> createRestartableReader(int size) {
+        ForkableItemStreamReader<Map<String,Object>> reader = new ForkableItemStreamReader<>(createListReader(constructList("name", 1, size)));
+        reader.addSlaveReaderProvider(new ForkableItemStreamReader.Provider<>(items -> getSlaveItemStreamReader("description", items), keyFunction, mergeFunction, false));
+        return reader;
+    }
+
+    @Test
+    public void testSortMerge() throws Exception {
+        ForkableItemStreamReader<Map<String,Object>> reader = new ForkableItemStreamReader<>(createListReader(constructList("name", 1, 300)));
+        // two codes for multiples of 3
+        List<Map<String,Object>> codes = IntStream.rangeClosed(1, 100).boxed()
+            .flatMap(i -> Stream.of(construct("code", i * 3), construct("code2", i * 3)))
+            .collect(Collectors.toList());
+        reader.addSortedSlave(new SortMergeJoinItemStreamReader.SortedSlave<>(createListReader(codes), m -> (Integer) m.get("id"), mergeFunction, false));
+        List<Map<String,Object>> evens = IntStream.rangeClosed(1, 150).mapToObj(i -> construct("even", i * 2)).collect(Collectors.toList());
+        reader.addSortedSlave(new SortMergeJoinItemStreamReader.SortedSlave<>(createListReader(evens), m -> (Integer) m.get("id"), mergeFunction, true));
+
+        ExecutionContext executionContext = new ExecutionContext();
+        int count = 0;
+        try {
+            reader.open(executionContext);
+            Map<String,Object> o;
+            while ((o = reader.read()) != null) {
+                int id = (Integer) o.get("id");
+                assertThat(id % 2, is(0));
+                assertThat(o.containsKey("code") && o.containsKey("code2"), is(id % 3 == 0));
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertThat(count, is(150));
+    }
+
+    private ItemStreamReader<Map<String,Object>> createListReader(Collection<Map<String,Object>> items) {
+        Queue<Map<String,Object>> queue = new LinkedList<>(items);
+        return new ItemStreamReader<Map<String, Object>>() {
+
+            @Override
+            public void open(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void update(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void close() throws ItemStreamException {
+
+            }
+
+            @Override
+            public Map<String, Object> read() {
+                return queue.poll();
+            }
+
+        };
+    }
+
+    private <T> int read(ItemStreamReader<T> reader) throws Exception {
         ExecutionContext executionContext = new ExecutionContext();
+        int count = 0;
         try {
             reader.open(executionContext);
             Object o;
             while ((o = reader.read()) != null) {
                 LOGGER.info("Read {}", o);
+                count++;
             }
             LOGGER.info("Done");
         } finally {
             reader.close();
         }
+        return count;
     }
 
     private ForkableItemStreamReader<Map<String,Object>> getSlaveItemStreamReader(String field, Collection<Map<String,Object>> items) {
@@ -0,0 +1,59 @@
+package app.batch.reader;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ForkableJoinIndexTest {
+
+    @Test
+    public void insertAndMerge() {
+        ForkableJoinIndex<StringBuilder> index = new ForkableJoinIndex<>();
+        StringBuilder a = new StringBuilder("a");
+        StringBuilder b = new StringBuilder("b");
+        index.insert(1, a);
+        index.insert(1L, b);
+        index.insert(1, b);
+        index.insert("x", a);
+
+        assertThat(index.merge(1L, new StringBuilder("c"), StringBuilder::append), containsInAnyOrder(a, b));
+        assertThat(a.toString(), is("ac"));
+        assertThat(b.toString(), is("bc"));
+        assertThat(index.merge("x", new StringBuilder("d"), StringBuilder::append), is(Collections.singletonList(a)));
+        assertThat(a.toString(), is("acd"));
+
+        // unmatched items are added
+        StringBuilder e = new StringBuilder("e");
+        assertThat(index.merge(2, e, StringBuilder::append), is(empty()));
+        assertThat(index.get(2L), is(Collections.singletonList(e)));
+    }
+
+    @Test
+    public void objectKeysOfDifferentTypes() {
+        ForkableJoinIndex<String> index = new ForkableJoinIndex<>();
+        index.insert((Object) 1, "a");
+        index.insert((Object) 1L, "b");
+
+        // object keys are matched by equals, and long keys are kept apart
+        assertThat(index.get((Object) 1), is(Collections.singletonList("a")));
+        assertThat(index.get((Object) 1L), is(Collections.singletonList("b")));
+        assertThat(index.get(1L), is(empty()));
+        assertThat(index.size(), is(2));
+    }
+
+    @Test
+    public void remove() {
+        ForkableJoinIndex<String> index = new ForkableJoinIndex<>();
+        IntStream.range(0, 10000).forEach(i -> index.insert(i * 64L, String.valueOf(i)));
+        IntStream.range(0, 10000).filter(i -> i % 3 == 0).forEach(i -> index.remove(i * 64L));
+        IntStream.range(0, 10000).forEach(i ->
+            assertThat(index.get(i * 64L), is(i % 3 == 0 ? Collections.emptyList() : Arrays.asList(String.valueOf(i)))));
+    }
+
+}
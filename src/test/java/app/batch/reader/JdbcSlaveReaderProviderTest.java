@@ -0,0 +1,117 @@
+package app.batch.reader;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemStreamReader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JdbcSlaveReaderProviderTest {
+
+    private EmbeddedDatabase dataSource;
+
+    @Before
+    public void setUp() {
+        dataSource = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table amount (item_id int, amount int)");
+        IntStream.rangeClosed(1, 500).filter(i -> i % 2 == 0)
+            .forEach(i -> jdbcTemplate.update("insert into amount values (?, ?)", i, i * 10));
+    }
+
+    @After
+    public void tearDown() {
+        dataSource.shutdown();
+    }
+
+    @Test
+    public void readInList() throws Exception {
+        JdbcSlaveReaderProvider<Map<String,Object>> provider = createProvider();
+        provider.setSliceSize(7);
+        read(provider);
+    }
+
+    @Test
+    public void readTempTable() throws Exception {
+        JdbcSlaveReaderProvider<Map<String,Object>> provider = createProvider();
+        provider.setTempTableThreshold(10);
+        read(provider);
+    }
+
+    private JdbcSlaveReaderProvider<Map<String,Object>> createProvider() {
+        JdbcSlaveReaderProvider<Map<String,Object>> provider = new JdbcSlaveReaderProvider<>();
+        provider.setDataSource(dataSource);
+        provider.setSql("select item_id, amount from amount where item_id in ({keys})");
+        provider.setRowMapper((rs, i) -> {
+            Map<String,Object> m = new HashMap<>();
+            m.put("id", rs.getInt("item_id"));
+            m.put("amount", rs.getInt("amount"));
+            return m;
+        });
+        provider.setKeyFunction(m -> m.get("id"));
+        provider.setMergeFunction((a, b) -> {
+            a.putAll(b);
+            return a;
+        });
+        return provider;
+    }
+
+    private void read(JdbcSlaveReaderProvider<Map<String,Object>> provider) throws Exception {
+        Iterator<Map<String,Object>> items = IntStream.rangeClosed(1, 500).mapToObj(i -> {
+            Map<String,Object> m = new HashMap<>();
+            m.put("id", i);
+            return m;
+        }).collect(Collectors.toList()).iterator();
+        ForkableItemStreamReader<Map<String,Object>> reader = new ForkableItemStreamReader<>(new ItemStreamReader<Map<String, Object>>() {
+
+            @Override
+            public void open(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void update(final ExecutionContext executionContext) throws ItemStreamException {
+
+            }
+
+            @Override
+            public void close() throws ItemStreamException {
+
+            }
+
+            @Override
+            public Map<String, Object> read() {
+                return items.hasNext() ? items.next() : null;
+            }
+
+        });
+        reader.addSlaveReaderProvider(provider);
+        int count = 0;
+        try {
+            reader.open(new ExecutionContext());
+            Map<String,Object> o;
+            while ((o = reader.read()) != null) {
+                int id = (Integer) o.get("id");
+                assertThat(o.get("amount"), is(id % 2 == 0 ? (Object) (id * 10) : null));
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertThat(count, is(500));
+    }
+
+}
@@ -2,7 +2,11 @@ package app.batch.reader;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import org.junit.Test;
 import org.springframework.batch.item.ExecutionContext;
 import org.springframework.batch.item.ItemStreamException;
@@ -12,7 +16,9 @@ import org.springframework.batch.item.ParseException;
 import org.springframework.batch.item.UnexpectedInputException;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Created by Liu on 9/28/2017.
@@ -59,6 +65,97 @@ public class TransformableItemReaderTest {
         assertThat(r, contains(2, 2, 4, 6, 4, 8, 10));
     }
 
+    @Test
+    public void transform_async() throws Exception {
+        final ExecutionContext context = new ExecutionContext();
+        ItemStreamReader<Integer> r1 = createItemStreamReader(1, 1000);
+        TransformableReader<Integer> t1 = new TransformableReader<>(r1);
+        t1.setAsync(true);
+        t1.setBatchSize(7);
+        t1.setBufferSize(3);
+        t1.setMapper((n, ctx) -> Arrays.asList(n, n * 2));
+        t1.setFilter((n, ctx) -> n % 3 != 0);
+        List<Integer> r = read(t1, context);
+        assertThat(r, is(IntStream.rangeClosed(1, 1000).boxed()
+            .flatMap(n -> Stream.of(n, n * 2)).filter(n -> n % 3 != 0).collect(Collectors.toList())));
+    }
+
+    @Test
+    public void transform_asyncFailure() throws Exception {
+        final ExecutionContext context = new ExecutionContext();
+        TransformableReader<Integer> t1 = createFailingReader(createItemStreamReader(1, 100));
+        final List<Integer> r = new ArrayList<>();
+        t1.open(context);
+        try {
+            Integer o;
+            while ((o = t1.read()) != null) {
+                r.add(o);
+            }
+            fail();
+        } catch (IllegalArgumentException e) {
+            // the failure is not skipped by later reads
+            try {
+                t1.read();
+                fail();
+            } catch (IllegalArgumentException e2) {
+                assertThat(e2, is(e));
+            }
+        }
+        t1.update(context);
+        t1.close();
+        // the batch of the failed item is not read
+        assertThat(r, is(IntStream.rangeClosed(1, 49).boxed().collect(Collectors.toList())));
+        assertThat(context.getInt("TransformableReader.read.count"), is(49));
+
+        // items read before the failure are skipped on restart
+        t1 = new TransformableReader<>(createItemStreamReader(1, 100));
+        t1.setAsync(true);
+        t1.setBatchSize(7);
+        assertThat(read(t1, context), is(IntStream.rangeClosed(50, 100).boxed().collect(Collectors.toList())));
+    }
+
+    @Test
+    public void transform_asyncClosedEarly() throws Exception {
+        final ExecutionContext context = new ExecutionContext();
+        TransformableReader<Integer> t1 = new TransformableReader<>(createItemStreamReader(1, 1000));
+        t1.setAsync(true);
+        t1.setBatchSize(7);
+        t1.setBufferSize(3);
+        t1.setMapper((n, ctx) -> Arrays.asList(n, n * 2));
+        t1.setFilter((n, ctx) -> n % 3 != 0);
+        t1.open(context);
+        // 1, 2, 2, 4, 4 of the items 1, 2, 3 (filtered) and 4
+        for (int i = 0; i < 5; i++) {
+            t1.read();
+        }
+        t1.update(context);
+        t1.close();
+        // item 4 is read again as 8 is not read
+        assertThat(context.getInt("TransformableReader.read.count"), is(3));
+
+        t1 = new TransformableReader<>(createItemStreamReader(1, 1000));
+        t1.setAsync(true);
+        t1.setMapper((n, ctx) -> Arrays.asList(n, n * 2));
+        t1.setFilter((n, ctx) -> n % 3 != 0);
+        List<Integer> r = read(t1, context);
+        assertThat(r.subList(0, 4), contains(4, 8, 5, 10));
+        assertThat(r.size(), is(2 * 667 - 4));
+    }
+
+    private TransformableReader<Integer> createFailingReader(ItemStreamReader<Integer> reader) {
+        TransformableReader<Integer> t1 = new TransformableReader<>(reader);
+        t1.setAsync(true);
+        t1.setBatchSize(7);
+        t1.setBufferSize(3);
+        t1.setMapper((n, ctx) -> {
+            if (n == 50) {
+                throw new IllegalArgumentException("Cannot map " + n);
+            }
+            return Collections.singletonList(n);
+        });
+        return t1;
+    }
+
     private ItemStreamReader<Integer> createItemStreamReader(int lb, int ub) {
         return new ItemStreamReader<Integer>() {
 
@@ -0,0 +1,108 @@
+package app.service;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import app.BatchApplication;
+import app.hibernate.IdSegmentInitializer;
+import app.model.ApplicationLog;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.isOneOf;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests of the ID allocation of application logs.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = BatchApplication.class)
+public class ApplicationLogServiceTest {
+
+    @Resource
+    private ApplicationLogService applicationLogService;
+
+    @Resource
+    private IdSegmentInitializer idSegmentInitializer;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    @After
+    public void tearDown() {
+        applicationLogService.deleteAll();
+    }
+
+    @Test
+    public void pooledIds() {
+        final long nextVal = getNextVal();
+
+        List<ApplicationLog> logs = create(1500);
+
+        assertThat(logs.stream().map(ApplicationLog::getId).distinct().count(), is(1500L));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from application_log", Integer.class), is(1500));
+        // one row per entity, updated once per block of 1000 IDs
+        assertThat(jdbcTemplate.queryForObject(
+            "select count(*) from hibernate_sequences where sequence_name = 'application_log'", Integer.class), is(1));
+        assertThat(getNextVal() - nextVal, isOneOf(1000L, 2000L));
+        assertThat(getNextVal(), greaterThan(getMaxId()));
+    }
+
+    @Test
+    public void pooledIdsAfterCleanup() {
+        create(1500);
+        jdbcTemplate.execute(getCleanupSql());
+
+        // the segment is not reset, so the next blocks do not overlap the IDs in memory
+        List<ApplicationLog> logs = create(2500);
+
+        assertThat(logs.stream().map(ApplicationLog::getId).distinct().count(), is(2500L));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from application_log", Integer.class), is(2500));
+        assertThat(getNextVal(), greaterThan(getMaxId()));
+    }
+
+    @Test
+    public void segmentSeededFromMaxId() {
+        final long id = getNextVal() + 5000;
+        jdbcTemplate.update("insert into application_log (id, type, status) values (?, 'ERROR', 'OPEN')", id);
+
+        idSegmentInitializer.afterPropertiesSet();
+
+        assertThat(getNextVal(), is(id + 1));
+        // a lower maximum ID does not lower the segment
+        jdbcTemplate.update("delete from application_log");
+        idSegmentInitializer.afterPropertiesSet();
+        assertThat(getNextVal(), is(id + 1));
+    }
+
+    private List<ApplicationLog> create(int n) {
+        return applicationLogService.create(IntStream.rangeClosed(1, n)
+            .mapToObj(i -> applicationLogService.construct(i, new IllegalStateException("Error " + i)))
+            .collect(Collectors.toList()));
+    }
+
+    private long getNextVal() {
+        return jdbcTemplate.queryForObject(
+            "select next_val from hibernate_sequences where sequence_name = 'application_log'", Long.class);
+    }
+
+    private long getMaxId() {
+        return jdbcTemplate.queryForObject("select coalesce(max(id), 0) from application_log", Long.class);
+    }
+
+    private String getCleanupSql() {
+        final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        new XmlBeanDefinitionReader(beanFactory).loadBeanDefinitions("classpath:/batch-jobs.xml");
+        return beanFactory.getBean("cleanupSql", String.class);
+    }
+
+}
@@ -0,0 +1,197 @@
+package app.service;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.Column;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Version;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import app.BatchApplication;
+import app.config.HibernateConfiguration;
+import app.exception.ApplicationException;
+import app.model.Person;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests of the write paths of {@link EntityService} on persons.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = BatchApplication.class)
+@TestPropertySource(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+public class PersonServiceTest {
+
+    @Resource
+    private PersonService personService;
+
+    @Resource
+    private EntityManagerFactory entityManagerFactory;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @After
+    public void tearDown() {
+        personService.deleteAll();
+    }
+
+    @Test
+    public void bulkCreate() {
+        assertThat(entityManagerFactory.getProperties().get(HibernateConfiguration.JDBC_BATCH_SIZE), is("50"));
+        final Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        List<Person> created = personService.create(createPersons(1, 120));
+
+        assertThat(created.size(), is(120));
+        // 120 inserts are sent in 3 JDBC batches, each prepared once
+        assertThat(statistics.getEntityInsertCount(), is(120L));
+        assertThat(statistics.getPrepareStatementCount(), is(3L));
+        created.forEach(p -> assertThat(p.getId(), notNullValue()));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from person", Integer.class), is(120));
+    }
+
+    @Test
+    public void update() {
+        List<Person> created = personService.create(createPersons(1, 20));
+        created.forEach(p -> p.setLastName(p.getLastName() + "-updated"));
+
+        personService.update(created);
+
+        assertThat(jdbcTemplate.queryForObject("select count(*) from person where last_name like '%-updated'", Integer.class), is(20));
+    }
+
+    @Test(expected = ApplicationException.class)
+    public void updateMissing() {
+        List<Person> persons = createPersons(1, 2);
+        persons.get(0).setId("missing");
+        persons.get(1).setId("missing too");
+        personService.update(persons);
+    }
+
+    @Test
+    public void upsert() {
+        List<Person> created = personService.create(createPersons(1, 10));
+        String id = created.get(0).getId();
+        Timestamp createdTime = jdbcTemplate.queryForObject("select created from person where first_name = 'First1'", Timestamp.class);
+        List<Person> persons = createPersons(1, 60);
+        persons.forEach(p -> {
+            p.setDateOfBirth(LocalDate.of(2000, 1, 1));
+            p.setCreated(LocalDateTime.of(2000, 1, 1, 0, 0));
+        });
+        personService.setUpsert(true);
+        try {
+            // persons 1 to 10 are matched by name and 11 to 60 are inserted
+            persons = personService.save(persons);
+        } finally {
+            personService.setUpsert(false);
+        }
+
+        assertThat(jdbcTemplate.queryForObject("select count(*) from person", Integer.class), is(60));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from person where date_of_birth = '2000-01-01'", Integer.class), is(60));
+        assertThat(jdbcTemplate.queryForObject("select person_id from person where first_name = 'First1'", String.class), is(id));
+        // matched rows keep their creation time
+        assertThat(jdbcTemplate.queryForObject("select created from person where first_name = 'First1'", Timestamp.class), is(createdTime));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from person where created = '2000-01-01 00:00:00'", Integer.class), is(50));
+        // the returned IDs are the stored IDs
+        assertThat(persons.get(0).getId(), is(id));
+        persons.forEach(p -> assertThat(p.getId(), is(jdbcTemplate.queryForObject(
+            "select person_id from person where first_name = ?", String.class, p.getFirstName()))));
+    }
+
+    @Test
+    public void upsertManaged() {
+        String id = personService.create(createPersons(1, 1)).get(0).getId();
+        personService.setUpsert(true);
+        personService.setFlushAndClear(false);
+        try {
+            new TransactionTemplate(transactionManager).execute(status -> {
+                Person managed = entityManager.find(Person.class, id);
+                Person person = createPersons(1, 1).get(0);
+                person.setDateOfBirth(LocalDate.of(2000, 1, 1));
+                personService.save(person);
+                // the stale instance of the row is detached, so the merged row is read again
+                assertThat(entityManager.contains(managed), is(false));
+                assertThat(entityManager.find(Person.class, id).getDateOfBirth(), is(LocalDate.of(2000, 1, 1)));
+                return null;
+            });
+        } finally {
+            personService.setUpsert(false);
+            personService.setFlushAndClear(true);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void upsertVersioned() {
+        new MergeStatement<>(Versioned.class);
+    }
+
+    @Test
+    public void flushAndClear() {
+        String id = personService.create(createPersons(0, 0)).get(0).getId();
+        List<Person> created = new TransactionTemplate(transactionManager).execute(status -> {
+            Person other = entityManager.find(Person.class, id);
+            List<Person> persons = personService.create(createPersons(1, 120));
+            // written persons are detached within the transaction
+            persons.forEach(p -> assertThat(entityManager.contains(p), is(false)));
+            personService.update(persons);
+            persons.forEach(p -> assertThat(entityManager.contains(p), is(false)));
+            // other entities of the caller stay managed
+            assertThat(entityManager.contains(other), is(true));
+            return persons;
+        });
+
+        assertThat(created.size(), is(120));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from person", Integer.class), is(121));
+    }
+
+    @MappedSuperclass
+    private static class Versioned {
+
+        @Id
+        @Column(name = "id")
+        private Long id;
+
+        // versions are not checked by the merge
+        @Version
+        @Column(name = "version")
+        private Long version;
+    }
+
+    private List<Person> createPersons(int lb, int ub) {
+        return IntStream.rangeClosed(lb, ub).mapToObj(i -> {
+            Person p = new Person(null, "First" + i, "Last" + i);
+            p.setDateOfBirth(LocalDate.of(1980, 1, 1).plusDays(i));
+            p.beforeSave();
+            return p;
+        }).collect(Collectors.toList());
+    }
+
+}